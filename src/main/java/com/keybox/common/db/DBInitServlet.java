@@ -64,6 +64,14 @@ public class DBInitServlet extends javax.servlet.http.HttpServlet {
                 statement.executeUpdate("create table if not exists status (id INTEGER, user_id INTEGER, status_cd varchar not null default 'INITIAL', primary key (id, user_id), foreign key (id) references system(id) on delete cascade, foreign key (user_id) references users(id) on delete cascade)");
 
             }
+            //added after the initial schema so it is checked on every start
+            statement.executeUpdate("create table if not exists recent_system (user_id INTEGER, user varchar not null, host varchar not null, port INTEGER not null, last_used_tm timestamp not null, primary key (user_id, user, host, port), foreign key (user_id) references users(id) on delete cascade)");
+            //connect phase timings in ms stored with the status of each system
+            for (String column : new String[]{"dns_tm", "tcp_tm", "kex_tm", "auth_tm", "channel_tm"}) {
+                statement.executeUpdate("alter table status add column if not exists " + column + " INTEGER");
+            }
+            //max output chars per second for each terminal, null for the default
+            statement.executeUpdate("alter table user_theme add column if not exists output_rate_limit INTEGER");
 
             DBUtils.closeRs(rs);
 
@@ -0,0 +1,99 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.common.listener;
+
+import com.keybox.manage.action.SecureShellAction;
+import com.keybox.manage.model.SchSession;
+import com.keybox.manage.model.UserSchSessions;
+import com.keybox.manage.task.SessionReaperTask;
+import com.keybox.manage.util.ExecutorUtil;
+import com.keybox.manage.util.IdentityCacheUtil;
+import com.keybox.manage.util.RecordingUtil;
+import com.keybox.manage.util.SSHUtil;
+
+import javax.servlet.ServletContextEvent;
+import javax.servlet.ServletContextListener;
+import javax.servlet.annotation.WebListener;
+
+/**
+ * Starts the session reaper, identity cache sweep and recording writer when the application is deployed, and
+ * closes open ssh sessions and stops the shared thread pools when it is undeployed
+ */
+@WebListener
+public class AppLifecycleListener implements ServletContextListener {
+
+    @Override
+    public void contextInitialized(ServletContextEvent event) {
+
+        //reclaim dead and orphaned terminals for the life of the application
+        ExecutorUtil.scheduleMaintenanceAtFixedRate(new SessionReaperTask(), SessionReaperTask.REAPER_INTERVAL);
+
+        //wipe expired application keys
+        ExecutorUtil.scheduleMaintenanceAtFixedRate(new Runnable() {
+            public void run() {
+                try {
+                    IdentityCacheUtil.sweep();
+                } catch (Exception ex) {
+                    //keep the scheduled task running
+                    ex.printStackTrace();
+                }
+            }
+        }, IdentityCacheUtil.SWEEP_INTERVAL);
+
+        //write queued session recording frames
+        if (RecordingUtil.RECORDING_ENABLED) {
+            ExecutorUtil.scheduleRecordingAtFixedRate(new Runnable() {
+                public void run() {
+                    try {
+                        RecordingUtil.flushAll();
+                    } catch (Exception ex) {
+                        //keep the scheduled task running
+                        ex.printStackTrace();
+                    }
+                }
+            }, RecordingUtil.RECORDING_FLUSH_INTERVAL);
+        }
+    }
+
+    @Override
+    public void contextDestroyed(ServletContextEvent event) {
+
+        //disconnect ssh sessions so reader tasks see end of stream
+        for (UserSchSessions userSchSessions : SecureShellAction.getUserSchSessionMap().values()) {
+            for (SchSession schSession : userSchSessions.getSchSessionMap().values()) {
+                try {
+                    if (schSession.getChannel() != null) {
+                        schSession.getChannel().disconnect();
+                    }
+                    if (schSession.getSession() != null) {
+                        schSession.getSession().disconnect();
+                    }
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+            userSchSessions.getSchSessionMap().clear();
+        }
+        SecureShellAction.getUserSchSessionMap().clear();
+        //cached sessions without a terminal and warm sessions
+        SSHUtil.closeAllConnections();
+
+        ExecutorUtil.shutdown();
+        IdentityCacheUtil.clearAll();
+        //write what is left of the recordings once the readers have stopped
+        RecordingUtil.closeAll();
+    }
+}
@@ -15,6 +15,8 @@
  */
 package com.keybox.common.util;
 
+import org.apache.commons.lang3.StringUtils;
+
 import java.util.*;
 
 /**
@@ -37,6 +39,25 @@ public class AppConfig {
         return prop.getString(name);
     }
 
+    /**
+     * gets the property from config and falls back to the default if it is not set
+     *
+     * @param name         property name
+     * @param defaultValue value returned if property is missing or empty
+     * @return configuration property
+     */
+    public static String getProperty(String name, String defaultValue) {
+
+        String value = null;
+        if (prop.containsKey(name)) {
+            value = prop.getString(name);
+        }
+        if (StringUtils.isEmpty(value)) {
+            value = defaultValue;
+        }
+        return value;
+    }
+
 
 
 
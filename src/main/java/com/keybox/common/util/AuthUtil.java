@@ -15,7 +15,11 @@
  */
 package com.keybox.common.util;
 
+import com.keybox.manage.action.SecureShellAction;
+import com.keybox.manage.db.AuthDB;
 import com.keybox.manage.util.EncryptionUtil;
+import com.keybox.manage.util.IdentityCacheUtil;
+import com.keybox.manage.util.SSHUtil;
 import javax.servlet.http.HttpSession;
 import java.text.SimpleDateFormat;
 import java.util.Calendar;
@@ -105,6 +109,20 @@ public class AuthUtil {
      */
     public static void deleteAllSession(HttpSession session) {
 
+        //wipe the decrypted application key of the user and close unused sessions
+        String authToken = getAuthToken(session);
+        if (authToken != null) {
+            try {
+                Long userId = AuthDB.getUserIdByAuthToken(authToken);
+                IdentityCacheUtil.clear(userId);
+                SSHUtil.closeWarmConnections(userId);
+                //terminals kept for a reconnect are not needed once the user logs out
+                SSHUtil.disconnectUser(userId, SecureShellAction.getUserSchSessionMap());
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+
         session.setAttribute("timeout", null);
         session.setAttribute("authToken", null);
         session.setAttribute("sessionId",null);
@@ -22,6 +22,7 @@ import com.keybox.manage.db.PrivateKeyDB;
 import com.keybox.manage.model.ApplicationKey;
 import com.keybox.manage.model.Auth;
 import com.keybox.manage.util.OTPUtil;
+import com.keybox.manage.util.SSHUtil;
 import com.keybox.manage.util.OpenShiftUtils;
 import com.openshift.client.*;
 import com.opensymphony.xwork2.ActionSupport;
@@ -127,6 +128,9 @@ public class LoginAction extends ActionSupport implements ServletRequestAware, S
             return "otp";
         }
 
+        //open sessions to recently used systems while the user selects systems
+        SSHUtil.warmConnections(auth.getId());
+
         return SUCCESS;
     }
 
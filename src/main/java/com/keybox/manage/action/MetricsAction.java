@@ -0,0 +1,86 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.action;
+
+import com.google.gson.Gson;
+import com.keybox.common.util.AuthUtil;
+import com.keybox.manage.db.AuthDB;
+import com.keybox.manage.task.SecureShellTask;
+import com.keybox.manage.task.SessionReaperTask;
+import com.keybox.manage.util.ConnectTimingUtil;
+import com.keybox.manage.util.ExecutorUtil;
+import com.keybox.manage.util.RecordingIndexUtil;
+import com.keybox.manage.util.SSHUtil;
+import com.keybox.manage.util.SessionOutputUtil;
+import com.opensymphony.xwork2.ActionSupport;
+import org.apache.struts2.convention.annotation.Action;
+import org.apache.struts2.interceptor.ServletRequestAware;
+import org.apache.struts2.interceptor.ServletResponseAware;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Action that returns runtime metrics as json, metrics naming hosts are limited to the user's own terminals and connects
+ */
+public class MetricsAction extends ActionSupport implements ServletRequestAware, ServletResponseAware {
+
+    HttpServletRequest servletRequest;
+    HttpServletResponse servletResponse;
+
+    @Action(value = "/admin/getMetrics")
+    public String getMetrics() {
+
+        Long userId = AuthDB.getUserIdByAuthToken(AuthUtil.getAuthToken(servletRequest.getSession()));
+
+        Map<String, Object> metrics = new LinkedHashMap<String, Object>();
+        metrics.put("executors", ExecutorUtil.getStats());
+        metrics.put("output", SessionOutputUtil.getStats());
+        metrics.put("decode", SecureShellTask.getStats());
+        metrics.put("input", SSHUtil.getInputStats(userId, SecureShellAction.getUserSchSessionMap()));
+        metrics.put("connections", SSHUtil.getConnectionStats());
+        metrics.put("connectTimings", ConnectTimingUtil.getStats(userId));
+        metrics.put("reaper", SessionReaperTask.getStats());
+        metrics.put("recordingIndex", RecordingIndexUtil.getStats());
+
+        try {
+            servletResponse.setContentType("application/json");
+            servletResponse.getWriter().write(new Gson().toJson(metrics));
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+
+        return null;
+    }
+
+    public HttpServletRequest getServletRequest() {
+        return servletRequest;
+    }
+
+    public void setServletRequest(HttpServletRequest servletRequest) {
+        this.servletRequest = servletRequest;
+    }
+
+    public HttpServletResponse getServletResponse() {
+        return servletResponse;
+    }
+
+    public void setServletResponse(HttpServletResponse servletResponse) {
+        this.servletResponse = servletResponse;
+    }
+}
@@ -0,0 +1,174 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.action;
+
+import com.google.gson.Gson;
+import com.keybox.common.util.AuthUtil;
+import com.keybox.manage.db.AuthDB;
+import com.keybox.manage.util.RecordingIndexUtil;
+import com.keybox.manage.util.RecordingUtil;
+import com.opensymphony.xwork2.ActionSupport;
+import org.apache.struts2.convention.annotation.Action;
+import org.apache.struts2.convention.annotation.Result;
+import org.apache.struts2.interceptor.ServletRequestAware;
+import org.apache.struts2.interceptor.ServletResponseAware;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Action to list session recordings and read them back for replay
+ */
+public class RecordingAction extends ActionSupport implements ServletRequestAware, ServletResponseAware {
+
+    HttpServletRequest servletRequest;
+    HttpServletResponse servletResponse;
+    String recordingName;
+    Long offset;
+    String query;
+    Long hostSystemId;
+    Long fromTm;
+    Long toTm;
+    List<Map<String, Object>> recordingList = new ArrayList<>();
+
+    @Action(value = "/admin/viewRecordings",
+            results = {
+                    @Result(name = "success", location = "/admin/recordings.jsp")
+            }
+    )
+    public String viewRecordings() {
+        Long userId = AuthDB.getUserIdByAuthToken(AuthUtil.getAuthToken(servletRequest.getSession()));
+        recordingList = RecordingUtil.getRecordings(userId);
+        return SUCCESS;
+    }
+
+    /**
+     * returns the frames of a recording from an offset as json so it can be played as it is read
+     */
+    @Action(value = "/admin/getRecording")
+    public String getRecording() {
+
+        Long userId = AuthDB.getUserIdByAuthToken(AuthUtil.getAuthToken(servletRequest.getSession()));
+
+        Map<String, Object> page = RecordingUtil.readRecording(userId, recordingName, offset != null ? offset : 0);
+
+        try {
+            servletResponse.setContentType("application/json");
+            servletResponse.getWriter().write(new Gson().toJson(page));
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+
+        return null;
+    }
+
+    /**
+     * returns the recorded blocks that match the query as json with the offset to start the replay from
+     */
+    @Action(value = "/admin/searchRecordings")
+    public String searchRecordings() {
+
+        Long userId = AuthDB.getUserIdByAuthToken(AuthUtil.getAuthToken(servletRequest.getSession()));
+
+        List<Map<String, Object>> resultList = RecordingIndexUtil.search(userId, query, hostSystemId, fromTm, toTm);
+
+        try {
+            servletResponse.setContentType("application/json");
+            servletResponse.getWriter().write(new Gson().toJson(resultList));
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+
+        return null;
+    }
+
+    public HttpServletRequest getServletRequest() {
+        return servletRequest;
+    }
+
+    @Override
+    public void setServletRequest(HttpServletRequest servletRequest) {
+        this.servletRequest = servletRequest;
+    }
+
+    public HttpServletResponse getServletResponse() {
+        return servletResponse;
+    }
+
+    @Override
+    public void setServletResponse(HttpServletResponse servletResponse) {
+        this.servletResponse = servletResponse;
+    }
+
+    public String getRecordingName() {
+        return recordingName;
+    }
+
+    public void setRecordingName(String recordingName) {
+        this.recordingName = recordingName;
+    }
+
+    public Long getOffset() {
+        return offset;
+    }
+
+    public void setOffset(Long offset) {
+        this.offset = offset;
+    }
+
+    public List<Map<String, Object>> getRecordingList() {
+        return recordingList;
+    }
+
+    public void setRecordingList(List<Map<String, Object>> recordingList) {
+        this.recordingList = recordingList;
+    }
+
+    public String getQuery() {
+        return query;
+    }
+
+    public void setQuery(String query) {
+        this.query = query;
+    }
+
+    public Long getHostSystemId() {
+        return hostSystemId;
+    }
+
+    public void setHostSystemId(Long hostSystemId) {
+        this.hostSystemId = hostSystemId;
+    }
+
+    public Long getFromTm() {
+        return fromTm;
+    }
+
+    public void setFromTm(Long fromTm) {
+        this.fromTm = fromTm;
+    }
+
+    public Long getToTm() {
+        return toTm;
+    }
+
+    public void setToTm(Long toTm) {
+        this.toTm = toTm;
+    }
+}
@@ -17,11 +17,15 @@ package com.keybox.manage.action;
 
 import com.google.gson.Gson;
 import com.jcraft.jsch.ChannelShell;
+import com.keybox.common.util.AppConfig;
 import com.keybox.common.util.AuthUtil;
 import com.keybox.manage.db.*;
 import com.keybox.manage.model.*;
 import com.keybox.manage.model.SortedSet;
+import com.keybox.manage.util.BroadcastUtil;
+import com.keybox.manage.util.ExecutorUtil;
 import com.keybox.manage.util.SSHUtil;
+import com.keybox.manage.util.SessionOutputUtil;
 import com.opensymphony.xwork2.ActionSupport;
 import org.apache.struts2.convention.annotation.Action;
 import org.apache.struts2.convention.annotation.Result;
@@ -33,7 +37,12 @@ import javax.servlet.http.HttpServletResponse;
 import java.io.BufferedReader;
 import java.io.StringReader;
 import java.util.*;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * This action will create composite ssh terminals to be used
@@ -50,12 +59,20 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
     String password;
     String passphrase;
     Integer id;
+    List<Integer> idList;
+    Long from;
+    Integer length;
     List<HostSystem> systemList = new ArrayList<HostSystem>();
     List<HostSystem> allocatedSystemList = new ArrayList<HostSystem>();
     UserSettings userSettings;
 
     static Map<Long, UserSchSessions> userSchSessionMap = new ConcurrentHashMap<Long, UserSchSessions>();
 
+    //connect to all selected systems at once rather than one after another
+    static final boolean PARALLEL_CONNECT = "true".equals(AppConfig.getProperty("parallelConnect", "true"));
+    //seconds a request waits for its parallel connects before the rest are cancelled
+    static final long CONNECT_WAIT_TIMEOUT = Long.parseLong(AppConfig.getProperty("connectWaitTimeout", "180")) * 1000;
+
 
 
 
@@ -75,33 +92,43 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
 
             //get status
             currentSystemStatus = SystemStatusDB.getSystemStatus(pendingSystemStatus.getId(), userId);
-            //if initial status run script
-            if (currentSystemStatus != null
-                    && (HostSystem.INITIAL_STATUS.equals(currentSystemStatus.getStatusCd())
-                    || HostSystem.AUTH_FAIL_STATUS.equals(currentSystemStatus.getStatusCd())
-                    || HostSystem.PUBLIC_KEY_FAIL_STATUS.equals(currentSystemStatus.getStatusCd()))
-                    ) {
-
-                //set current session
-                currentSystemStatus = SSHUtil.openSSHTermOnSystem(passphrase, password, userId, currentSystemStatus, userSchSessionMap);
 
-            }
-            if (currentSystemStatus != null
-                    && (HostSystem.AUTH_FAIL_STATUS.equals(currentSystemStatus.getStatusCd())
-                    || HostSystem.PUBLIC_KEY_FAIL_STATUS.equals(currentSystemStatus.getStatusCd()))) {
+            if (PARALLEL_CONNECT && currentSystemStatus != null
+                    && HostSystem.INITIAL_STATUS.equals(currentSystemStatus.getStatusCd())) {
 
-                pendingSystemStatus = currentSystemStatus;
+                //connect to all initial systems, systems that fail auth are left pending for a password or passphrase
+                currentSystemStatus = connectPendingSystems(userId);
+                pendingSystemStatus = SystemStatusDB.getNextPendingSystem(userId);
 
             } else {
+                //if initial status run script
+                if (currentSystemStatus != null
+                        && (HostSystem.INITIAL_STATUS.equals(currentSystemStatus.getStatusCd())
+                        || HostSystem.AUTH_FAIL_STATUS.equals(currentSystemStatus.getStatusCd())
+                        || HostSystem.PUBLIC_KEY_FAIL_STATUS.equals(currentSystemStatus.getStatusCd()))
+                        ) {
+
+                    //set current session
+                    currentSystemStatus = SSHUtil.openSSHTermOnSystem(passphrase, password, userId, currentSystemStatus, userSchSessionMap);
 
-                pendingSystemStatus = SystemStatusDB.getNextPendingSystem(userId);
-                //if success loop through systems until finished or need password
-                while (pendingSystemStatus != null && currentSystemStatus != null && HostSystem.SUCCESS_STATUS.equals(currentSystemStatus.getStatusCd())) {
-                    currentSystemStatus = SSHUtil.openSSHTermOnSystem(passphrase, password, userId, pendingSystemStatus, userSchSessionMap);
-                    pendingSystemStatus = SystemStatusDB.getNextPendingSystem(userId);
                 }
+                if (currentSystemStatus != null
+                        && (HostSystem.AUTH_FAIL_STATUS.equals(currentSystemStatus.getStatusCd())
+                        || HostSystem.PUBLIC_KEY_FAIL_STATUS.equals(currentSystemStatus.getStatusCd()))) {
+
+                    pendingSystemStatus = currentSystemStatus;
+
+                } else {
+
+                    pendingSystemStatus = SystemStatusDB.getNextPendingSystem(userId);
+                    //if success loop through systems until finished or need password
+                    while (pendingSystemStatus != null && currentSystemStatus != null && HostSystem.SUCCESS_STATUS.equals(currentSystemStatus.getStatusCd())) {
+                        currentSystemStatus = SSHUtil.openSSHTermOnSystem(passphrase, password, userId, pendingSystemStatus, userSchSessionMap);
+                        pendingSystemStatus = SystemStatusDB.getNextPendingSystem(userId);
+                    }
 
 
+                }
             }
 
         }
@@ -126,6 +153,79 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
     }
 
 
+    /**
+     * returns the connection status of the selected systems as json
+     */
+    @Action(value = "/admin/getSystemStatusList")
+    public String getSystemStatusList() {
+
+        Long userId = AuthDB.getUserIdByAuthToken(AuthUtil.getAuthToken(servletRequest.getSession()));
+
+        List<Map<String, Object>> statusList = new ArrayList<>();
+        for (HostSystem hostSystem : SystemStatusDB.getAllSystemStatus(userId)) {
+            Map<String, Object> status = new LinkedHashMap<>();
+            status.put("id", hostSystem.getId());
+            status.put("displayLabel", hostSystem.getDisplayLabel());
+            status.put("statusCd", hostSystem.getStatusCd());
+            status.put("connectTiming", hostSystem.getConnectTiming());
+            statusList.add(status);
+        }
+
+        try {
+            servletResponse.setContentType("application/json");
+            servletResponse.getWriter().write(new Gson().toJson(statusList));
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+
+        return null;
+    }
+
+
+    /**
+     * registers the selected terminals as a broadcast group so input is not looked up per terminal
+     */
+    @Action(value = "/admin/createBroadcastGroup")
+    public String createBroadcastGroup() {
+
+        Long userId = AuthDB.getUserIdByAuthToken(AuthUtil.getAuthToken(servletRequest.getSession()));
+
+        Map<String, Object> group = new LinkedHashMap<>();
+        group.put("groupId", BroadcastUtil.createGroup(userId, idList));
+
+        try {
+            servletResponse.setContentType("application/json");
+            servletResponse.getWriter().write(new Gson().toJson(group));
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+
+        return null;
+    }
+
+
+    /**
+     * returns a range of output history for a terminal as json so the page can load older output when it is viewed,
+     * null if the id is missing or the terminal is not found. The range is moved inside the history that is kept
+     */
+    @Action(value = "/admin/getScrollback")
+    public String getScrollback() {
+
+        Long userId = AuthDB.getUserIdByAuthToken(AuthUtil.getAuthToken(servletRequest.getSession()));
+
+        ScrollbackRange range = SessionOutputUtil.getScrollback(userId, id, from, length);
+
+        try {
+            servletResponse.setContentType("application/json");
+            servletResponse.getWriter().write(new Gson().toJson(range));
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        }
+
+        return null;
+    }
+
+
     @Action(value = "/admin/getNextPendingSystemForTerms",
             results = {
                     @Result(name = "success", location = "/admin/secure_shell.jsp")
@@ -177,6 +277,10 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
     )
     public String exitTerms() {
 
+        //terminals are closed when the user exits rather than kept for a reconnect
+        Long userId = AuthDB.getUserIdByAuthToken(AuthUtil.getAuthToken(servletRequest.getSession()));
+        SSHUtil.disconnectUser(userId, userSchSessionMap);
+
 
         return SUCCESS;
     }
@@ -188,23 +292,14 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
             UserSchSessions userSchSessions = SecureShellAction.getUserSchSessionMap().get(userId);
             if (userSchSessions != null) {
                 try {
-                    SchSession schSession = userSchSessions.getSchSessionMap().get(id);
-
-                    //disconnect ssh session
-                    if(schSession!=null) {
-                        if (schSession.getChannel() != null)
-                            schSession.getChannel().disconnect();
-                        if (schSession.getSession() != null)
-                            schSession.getSession().disconnect();
-                        schSession.setChannel(null);
-                        schSession.setSession(null);
-                        schSession.setInputToChannel(null);
-                        schSession.setCommander(null);
-                        schSession.setOutFromChannel(null);
-                        schSession = null;
+                    //remove from map, the id is released by the reader once the channel has closed
+                    SchSession schSession = userSchSessions.getSchSessionMap().remove(id);
+                    BroadcastUtil.invalidateGroups(userId, id);
+
+                    //disconnect ssh session, the session is only disconnected once no other terminal uses it
+                    if (schSession != null) {
+                        SSHUtil.disconnect(schSession);
                     }
-                    //remove from map
-                    userSchSessions.getSchSessionMap().remove(id);
                 } catch (Exception ex) {
                     ex.printStackTrace();
                 }
@@ -248,9 +343,12 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
 
                 SchSession schSession = userSchSessions.getSchSessionMap().get(id);
 
+                int cols = (int) Math.floor(userSettings.getPtyWidth() / 7.2981);
+                int rows = (int) Math.floor(userSettings.getPtyHeight() / 14.4166);
                 ChannelShell channel = (ChannelShell) schSession.getChannel();
-                channel.setPtySize((int) Math.floor(userSettings.getPtyWidth() / 7.2981), (int) Math.floor(userSettings.getPtyHeight() / 14.4166), userSettings.getPtyWidth(), userSettings.getPtyHeight());
+                channel.setPtySize(cols, rows, userSettings.getPtyWidth(), userSettings.getPtyHeight());
                 schSession.setChannel(channel);
+                SessionOutputUtil.resizeScreen(userId, id, cols, rows);
 
             }
 
@@ -260,6 +358,67 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
         return null;
     }
 
+    /**
+     * connects to all systems with an initial status in parallel
+     *
+     * @param userId user id
+     * @return status of a system that failed with an error or the last system connected
+     */
+    private HostSystem connectPendingSystems(final Long userId) {
+
+        final String passphrase = this.passphrase;
+        final String password = this.password;
+
+        List<HostSystem> hostSystemList = new ArrayList<>();
+        List<AtomicBoolean> settledList = new ArrayList<>();
+        List<Future<HostSystem>> futureList = new ArrayList<>();
+        for (final HostSystem hostSystem : SystemStatusDB.getAllSystemStatus(userId)) {
+            if (HostSystem.INITIAL_STATUS.equals(hostSystem.getStatusCd())) {
+                final AtomicBoolean settled = new AtomicBoolean(false);
+                futureList.add(ExecutorUtil.submitConnect(userId, new Callable<HostSystem>() {
+                    @Override
+                    public HostSystem call() {
+                        return SSHUtil.openSSHTermOnSystem(passphrase, password, userId, hostSystem, userSchSessionMap, settled);
+                    }
+                }));
+                hostSystemList.add(hostSystem);
+                settledList.add(settled);
+            }
+        }
+
+        //systems not connected by the deadline are cancelled and marked failed so they are not connected twice
+        long deadline = System.currentTimeMillis() + CONNECT_WAIT_TIMEOUT;
+        HostSystem systemStatus = null;
+        for (int i = 0; i < futureList.size(); i++) {
+            Future<HostSystem> future = futureList.get(i);
+            try {
+                HostSystem hostSystem = future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+                if (systemStatus == null
+                        || !(HostSystem.GENERIC_FAIL_STATUS.equals(systemStatus.getStatusCd())
+                        || HostSystem.HOST_FAIL_STATUS.equals(systemStatus.getStatusCd()))) {
+                    systemStatus = hostSystem;
+                }
+            } catch (TimeoutException ex) {
+                //a connect that is already adding its terminal sets its own status
+                if (settledList.get(i).compareAndSet(false, true)) {
+                    future.cancel(true);
+                    HostSystem hostSystem = hostSystemList.get(i);
+                    hostSystem.setErrorMsg(SSHUtil.CONNECT_TIMED_OUT);
+                    hostSystem.setStatusCd(HostSystem.GENERIC_FAIL_STATUS);
+                    SystemStatusDB.updateSystemStatus(hostSystem, userId);
+                    if (systemStatus == null
+                            || !(HostSystem.GENERIC_FAIL_STATUS.equals(systemStatus.getStatusCd())
+                            || HostSystem.HOST_FAIL_STATUS.equals(systemStatus.getStatusCd()))) {
+                        systemStatus = hostSystem;
+                    }
+                }
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+        return systemStatus;
+    }
+
     /**
      * set system list once all connections have been attempted
      *
@@ -324,6 +483,14 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
         this.id = id;
     }
 
+    public List<Integer> getIdList() {
+        return idList;
+    }
+
+    public void setIdList(List<Integer> idList) {
+        this.idList = idList;
+    }
+
     public String getPassword() {
         return password;
     }
@@ -395,6 +562,22 @@ public class SecureShellAction extends ActionSupport implements ServletRequestAw
     public void setUserSettings(UserSettings userSettings) {
         this.userSettings = userSettings;
     }
+
+    public Long getFrom() {
+        return from;
+    }
+
+    public void setFrom(Long from) {
+        this.from = from;
+    }
+
+    public Integer getLength() {
+        return length;
+    }
+
+    public void setLength(Integer length) {
+        this.length = length;
+    }
 }
 
 
@@ -19,6 +19,7 @@ import com.keybox.common.util.AuthUtil;
 import com.keybox.manage.db.AuthDB;
 import com.keybox.manage.db.UserThemeDB;
 import com.keybox.manage.model.UserSettings;
+import com.keybox.manage.util.SessionOutputUtil;
 import com.opensymphony.xwork2.ActionSupport;
 import org.apache.struts2.convention.annotation.Action;
 import org.apache.struts2.convention.annotation.Result;
@@ -48,17 +49,29 @@ public class UserSettingsAction extends ActionSupport implements ServletRequestA
 
     @Action(value = "/admin/themeSubmit",
             results = {
-                    @Result(name = "success", location = "/admin/setSystems.action", type = "redirect")
+                    @Result(name = "success", location = "/admin/setSystems.action", type = "redirect"),
+                    @Result(name = "input", location = "/admin/user_settings.jsp")
             }
     )
     public String themeSubmit() {
 
         Long userId = AuthDB.getUserIdByAuthToken(AuthUtil.getAuthToken(servletRequest.getSession()));
         UserThemeDB.saveTheme(userId, userSettings);
+        //applies to the open terminals
+        SessionOutputUtil.setOutputRateLimit(userId, userSettings.getOutputRateLimit());
 
         return SUCCESS;
     }
 
+    /**
+     * Validates fields for theme submit
+     */
+    public void validateThemeSubmit() {
+        if (userSettings != null && userSettings.getOutputRateLimit() != null && userSettings.getOutputRateLimit() <= 0) {
+            addFieldError("userSettings.outputRateLimit", "Must be greater than 0");
+        }
+    }
+
     public HttpServletRequest getServletRequest() {
         return servletRequest;
     }
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.db;
+
+import com.keybox.manage.model.HostSystem;
+import com.keybox.manage.util.DBUtils;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * DAO to keep track of the systems a user has most recently opened terminals on.
+ * Systems are stored by user, host and port since system ids change when the system list is refreshed
+ */
+public class RecentSystemDB {
+
+
+    /**
+     * sets the last used time for a system to now
+     *
+     * @param hostSystem host system
+     * @param userId     user id
+     */
+    public static void updateLastUsed(HostSystem hostSystem, Long userId) {
+
+        Connection con = null;
+        try {
+            con = DBUtils.getConn();
+            PreparedStatement stmt = con.prepareStatement("merge into recent_system (user_id, user, host, port, last_used_tm) key (user_id, user, host, port) values (?,?,?,?,current_timestamp)");
+            stmt.setLong(1, userId);
+            stmt.setString(2, hostSystem.getUser());
+            stmt.setString(3, hostSystem.getHost());
+            stmt.setInt(4, hostSystem.getPort());
+            stmt.execute();
+            DBUtils.closeStmt(stmt);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        DBUtils.closeConn(con);
+    }
+
+    /**
+     * returns the systems most recently used by the user
+     *
+     * @param userId user id
+     * @param limit  max number of systems
+     * @return list of host systems with user, host and port set
+     */
+    public static List<HostSystem> getRecentSystems(Long userId, int limit) {
+
+        List<HostSystem> hostSystemList = new ArrayList<HostSystem>();
+        Connection con = null;
+        try {
+            con = DBUtils.getConn();
+            PreparedStatement stmt = con.prepareStatement("select * from recent_system where user_id=? order by last_used_tm desc limit ?");
+            stmt.setLong(1, userId);
+            stmt.setInt(2, limit);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                HostSystem hostSystem = new HostSystem();
+                hostSystem.setUser(rs.getString("user"));
+                hostSystem.setHost(rs.getString("host"));
+                hostSystem.setPort(rs.getInt("port"));
+                hostSystemList.add(hostSystem);
+            }
+            DBUtils.closeRs(rs);
+            DBUtils.closeStmt(stmt);
+
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+        DBUtils.closeConn(con);
+
+        return hostSystemList;
+    }
+
+}
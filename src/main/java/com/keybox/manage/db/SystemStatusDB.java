@@ -15,6 +15,7 @@
  */
 package com.keybox.manage.db;
 
+import com.keybox.manage.model.ConnectTiming;
 import com.keybox.manage.model.HostSystem;
 import com.keybox.manage.model.SortedSet;
 import com.keybox.manage.util.DBUtils;
@@ -23,6 +24,8 @@ import java.sql.Connection;
 
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -178,10 +181,19 @@ public class SystemStatusDB {
 
         try {
 
-            PreparedStatement stmt = con.prepareStatement("update status set status_cd=? where id=? and user_id=?");
+            ConnectTiming timing = hostSystem.getConnectTiming();
+            if (timing == null) {
+                timing = new ConnectTiming();
+            }
+            PreparedStatement stmt = con.prepareStatement("update status set status_cd=?, dns_tm=?, tcp_tm=?, kex_tm=?, auth_tm=?, channel_tm=? where id=? and user_id=?");
             stmt.setString(1, hostSystem.getStatusCd());
-            stmt.setLong(2, hostSystem.getId());
-            stmt.setLong(3, userId);
+            setTiming(stmt, 2, timing.getDnsTm());
+            setTiming(stmt, 3, timing.getTcpTm());
+            setTiming(stmt, 4, timing.getKexTm());
+            setTiming(stmt, 5, timing.getAuthTm());
+            setTiming(stmt, 6, timing.getChannelTm());
+            stmt.setLong(7, hostSystem.getId());
+            stmt.setLong(8, userId);
             stmt.execute();
             DBUtils.closeStmt(stmt);
 
@@ -193,6 +205,42 @@ public class SystemStatusDB {
     }
 
 
+    private static void setTiming(PreparedStatement stmt, int index, Long tm) throws SQLException {
+        if (tm == null) {
+            stmt.setNull(index, Types.INTEGER);
+        } else {
+            stmt.setLong(index, tm);
+        }
+    }
+
+    /**
+     * returns the connect phase timings stored with a status row
+     *
+     * @param rs result set on a status row
+     * @return connect timing or null if the system has not been connected
+     */
+    private static ConnectTiming getConnectTiming(ResultSet rs) throws SQLException {
+
+        ConnectTiming timing = new ConnectTiming();
+        timing.setDnsTm(getTiming(rs, "dns_tm"));
+        timing.setTcpTm(getTiming(rs, "tcp_tm"));
+        timing.setKexTm(getTiming(rs, "kex_tm"));
+        timing.setAuthTm(getTiming(rs, "auth_tm"));
+        timing.setChannelTm(getTiming(rs, "channel_tm"));
+        if (timing.getChannelTm() == null && timing.getDnsTm() == null) {
+            return null;
+        }
+        //only the channel is timed when a session is reused
+        timing.setReused(timing.getDnsTm() == null);
+        return timing;
+    }
+
+    private static Long getTiming(ResultSet rs, String column) throws SQLException {
+        long tm = rs.getLong(column);
+        return rs.wasNull() ? null : tm;
+    }
+
+
     /**
      * returns all key placement statuses
      * @param userId user id
@@ -243,6 +291,7 @@ public class SystemStatusDB {
             while (rs.next()) {
                 HostSystem hostSystem = SystemDB.getSystem(con, rs.getLong("id"), userId);
                 hostSystem.setStatusCd(rs.getString("status_cd"));
+                hostSystem.setConnectTiming(getConnectTiming(rs));
                 hostSystemList.add(hostSystem);
             }
             DBUtils.closeRs(rs);
@@ -277,6 +326,7 @@ public class SystemStatusDB {
             while (rs.next()) {
                 hostSystem = SystemDB.getSystem(con, rs.getLong("id"), userId);
                 hostSystem.setStatusCd(rs.getString("status_cd"));
+                hostSystem.setConnectTiming(getConnectTiming(rs));
             }
             DBUtils.closeRs(rs);
             DBUtils.closeStmt(stmt);
@@ -22,6 +22,7 @@ import org.apache.commons.lang3.StringUtils;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.Types;
 
 /**
  * DAO to manage user themes 
@@ -48,6 +49,9 @@ public class UserThemeDB {
                 theme= new UserSettings();
                 theme.setBg(rs.getString("bg"));
                 theme.setFg(rs.getString("fg"));
+                //a limit of 0 or less is not valid, the default is used
+                Integer outputRateLimit = (Integer) rs.getObject("output_rate_limit");
+                theme.setOutputRateLimit((outputRateLimit != null && outputRateLimit > 0) ? outputRateLimit : null);
                 if(StringUtils.isNotEmpty(rs.getString("d1"))) {
                     String[] colors= new String[16];
                     colors[0] = rs.getString("d1");
@@ -98,9 +102,9 @@ public class UserThemeDB {
             stmt.execute();
             DBUtils.closeStmt(stmt);
 
-            if(StringUtils.isNotEmpty(theme.getPlane())|| StringUtils.isNotEmpty(theme.getTheme())) {
+            if(StringUtils.isNotEmpty(theme.getPlane())|| StringUtils.isNotEmpty(theme.getTheme()) || theme.getOutputRateLimit() != null) {
 
-                stmt = con.prepareStatement("insert into user_theme(user_id, bg, fg, d1, d2, d3, d4, d5, d6, d7, d8, b1, b2, b3, b4, b5, b6, b7, b8) values (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)");
+                stmt = con.prepareStatement("insert into user_theme(user_id, bg, fg, d1, d2, d3, d4, d5, d6, d7, d8, b1, b2, b3, b4, b5, b6, b7, b8, output_rate_limit) values (?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?,?)");
                 stmt.setLong(1, userId);
                 stmt.setString(2, theme.getBg());
                 stmt.setString(3, theme.getFg());
@@ -115,6 +119,7 @@ public class UserThemeDB {
                         stmt.setString(i + 4, null);
                     }
                 }
+                stmt.setObject(20, theme.getOutputRateLimit(), Types.INTEGER);
                 stmt.execute();
                 DBUtils.closeStmt(stmt);
             }
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.model;
+
+import com.keybox.manage.task.SessionInputTask;
+
+import java.nio.charset.Charset;
+
+/**
+ * Selected terminals that input is sent to, holds the input tasks so input is not looked up per instance
+ */
+public class BroadcastGroup {
+
+    Integer id;
+    int[] instanceIds;
+    SessionInputTask[] inputTasks;
+    //charset of the host for each input task
+    Charset[] charsets;
+    volatile boolean valid = true;
+
+    public Integer getId() {
+        return id;
+    }
+
+    public void setId(Integer id) {
+        this.id = id;
+    }
+
+    public int[] getInstanceIds() {
+        return instanceIds;
+    }
+
+    public void setInstanceIds(int[] instanceIds) {
+        this.instanceIds = instanceIds;
+    }
+
+    public SessionInputTask[] getInputTasks() {
+        return inputTasks;
+    }
+
+    public void setInputTasks(SessionInputTask[] inputTasks) {
+        this.inputTasks = inputTasks;
+    }
+
+    public Charset[] getCharsets() {
+        return charsets;
+    }
+
+    public void setCharsets(Charset[] charsets) {
+        this.charsets = charsets;
+    }
+
+    public boolean isValid() {
+        return valid;
+    }
+
+    public void setValid(boolean valid) {
+        this.valid = valid;
+    }
+}
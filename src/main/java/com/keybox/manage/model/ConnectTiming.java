@@ -0,0 +1,91 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.model;
+
+/**
+ * Time in ms spent in each phase of connecting a terminal to a host system.
+ * Only the channel is timed when an existing ssh session is reused
+ */
+public class ConnectTiming {
+
+    Long dnsTm;
+    Long tcpTm;
+    Long kexTm;
+    Long authTm;
+    Long channelTm;
+    boolean reused = false;
+
+    public Long getDnsTm() {
+        return dnsTm;
+    }
+
+    public void setDnsTm(Long dnsTm) {
+        this.dnsTm = dnsTm;
+    }
+
+    public Long getTcpTm() {
+        return tcpTm;
+    }
+
+    public void setTcpTm(Long tcpTm) {
+        this.tcpTm = tcpTm;
+    }
+
+    public Long getKexTm() {
+        return kexTm;
+    }
+
+    public void setKexTm(Long kexTm) {
+        this.kexTm = kexTm;
+    }
+
+    public Long getAuthTm() {
+        return authTm;
+    }
+
+    public void setAuthTm(Long authTm) {
+        this.authTm = authTm;
+    }
+
+    public Long getChannelTm() {
+        return channelTm;
+    }
+
+    public void setChannelTm(Long channelTm) {
+        this.channelTm = channelTm;
+    }
+
+    public boolean isReused() {
+        return reused;
+    }
+
+    public void setReused(boolean reused) {
+        this.reused = reused;
+    }
+
+    /**
+     * @return sum of the timed phases
+     */
+    public long getTotalTm() {
+        long total = 0;
+        for (Long tm : new Long[]{dnsTm, tcpTm, kexTm, authTm, channelTm}) {
+            if (tm != null) {
+                total = total + tm;
+            }
+        }
+        return total;
+    }
+}
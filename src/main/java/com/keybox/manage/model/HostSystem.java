@@ -35,6 +35,7 @@ public class HostSystem {
     String errorMsg;
     Long userId;
     Integer instanceId;
+    ConnectTiming connectTiming;
 
     public static final String INITIAL_STATUS="INITIAL";
     public static final String AUTH_FAIL_STATUS="AUTHFAIL";
@@ -164,4 +165,12 @@ public class HostSystem {
     public void setInstanceId(Integer instanceId) {
         this.instanceId = instanceId;
     }
+
+    public ConnectTiming getConnectTiming() {
+        return connectTiming;
+    }
+
+    public void setConnectTiming(ConnectTiming connectTiming) {
+        this.connectTiming = connectTiming;
+    }
 }
@@ -0,0 +1,63 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.model;
+
+import com.jcraft.jsch.Session;
+
+/**
+ * Authenticated ssh session shared by the shell channels opened to the same user and host
+ */
+public class SSHConnection {
+
+    String key;
+    Session session;
+    //number of shell channels using the session, guarded by the connection cache
+    int refCount = 0;
+    //opened ahead of use and not yet used by a terminal, guarded by the connection cache
+    boolean warm = false;
+
+    public String getKey() {
+        return key;
+    }
+
+    public void setKey(String key) {
+        this.key = key;
+    }
+
+    public Session getSession() {
+        return session;
+    }
+
+    public void setSession(Session session) {
+        this.session = session;
+    }
+
+    public int getRefCount() {
+        return refCount;
+    }
+
+    public void setRefCount(int refCount) {
+        this.refCount = refCount;
+    }
+
+    public boolean isWarm() {
+        return warm;
+    }
+
+    public void setWarm(boolean warm) {
+        this.warm = warm;
+    }
+}
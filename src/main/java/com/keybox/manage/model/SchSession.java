@@ -17,9 +17,11 @@ package com.keybox.manage.model;
 
 import com.jcraft.jsch.Channel;
 import com.jcraft.jsch.Session;
+import com.keybox.manage.task.SessionInputTask;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.nio.charset.Charset;
 
 
 /**
@@ -35,6 +37,9 @@ public class SchSession {
     InputStream outFromChannel;
     OutputStream inputToChannel;
     HostSystem hostSystem;
+    SessionInputTask inputTask;
+    SSHConnection connection;
+    Charset charset;
 
 
     public Session getSession() {
@@ -92,4 +97,28 @@ public class SchSession {
     public void setUserId(Long userId) {
         this.userId = userId;
     }
+
+    public SessionInputTask getInputTask() {
+        return inputTask;
+    }
+
+    public void setInputTask(SessionInputTask inputTask) {
+        this.inputTask = inputTask;
+    }
+
+    public SSHConnection getConnection() {
+        return connection;
+    }
+
+    public void setConnection(SSHConnection connection) {
+        this.connection = connection;
+    }
+
+    public Charset getCharset() {
+        return charset;
+    }
+
+    public void setCharset(Charset charset) {
+        this.charset = charset;
+    }
 }
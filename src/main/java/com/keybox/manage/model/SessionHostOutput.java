@@ -15,16 +15,25 @@
  */
 package com.keybox.manage.model;
 
+import com.keybox.manage.util.OutputRateLimiter;
+import com.keybox.manage.util.OutputRingBuffer;
+import com.keybox.manage.util.ScrollbackBuffer;
+import com.keybox.manage.util.TerminalScreen;
+
 /**
- * host id and string builder output
+ * host id, buffered output, the output already sent, the output rate limit and the screen if screen updates are enabled
  */
 public class SessionHostOutput {
     Long id;
-    StringBuilder output;
+    OutputRingBuffer output;
+    ScrollbackBuffer scrollback;
+    TerminalScreen screen;
+    OutputRateLimiter rateLimiter;
     
-    public SessionHostOutput(Long id, StringBuilder output){
+    public SessionHostOutput(Long id, OutputRingBuffer output, ScrollbackBuffer scrollback){
         this.id=id;
         this.output=output;
+        this.scrollback=scrollback;
     }
 
     public Long getId() {
@@ -35,11 +44,35 @@ public class SessionHostOutput {
         this.id = id;
     }
 
-    public StringBuilder getOutput() {
+    public OutputRingBuffer getOutput() {
         return output;
     }
 
-    public void setOutput(StringBuilder output) {
+    public void setOutput(OutputRingBuffer output) {
         this.output = output;
     }
+
+    public ScrollbackBuffer getScrollback() {
+        return scrollback;
+    }
+
+    public void setScrollback(ScrollbackBuffer scrollback) {
+        this.scrollback = scrollback;
+    }
+
+    public TerminalScreen getScreen() {
+        return screen;
+    }
+
+    public void setScreen(TerminalScreen screen) {
+        this.screen = screen;
+    }
+
+    public OutputRateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public void setRateLimiter(OutputRateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
 }
@@ -26,6 +26,8 @@ public class SessionOutput {
     Integer instanceId;
     String output;
 
+    //sequence after the output, used to resume after a reconnect
+    Long seq;
 
 
     public Long getHostSystemId() {
@@ -60,4 +62,12 @@ public class SessionOutput {
     public void setInstanceId(Integer instanceId) {
         this.instanceId = instanceId;
     }
+
+    public Long getSeq() {
+        return seq;
+    }
+
+    public void setSeq(Long seq) {
+        this.seq = seq;
+    }
 }
\ No newline at end of file
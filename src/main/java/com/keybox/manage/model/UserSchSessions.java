@@ -16,20 +16,50 @@
 package com.keybox.manage.model;
 
 
+import com.keybox.manage.util.InstanceIdAllocator;
+
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class UserSchSessions {
 
-    Map<Integer, SchSession> schSessionMap = new ConcurrentHashMap<Integer, SchSession>();
+    ConcurrentMap<Integer, SchSession> schSessionMap = new ConcurrentHashMap<Integer, SchSession>();
+    Map<Integer, BroadcastGroup> broadcastGroupMap = new ConcurrentHashMap<Integer, BroadcastGroup>();
+    AtomicInteger lastGroupId = new AtomicInteger(0);
+    InstanceIdAllocator instanceIdAllocator = new InstanceIdAllocator();
 
 
-    public Map<Integer, SchSession> getSchSessionMap() {
+    public ConcurrentMap<Integer, SchSession> getSchSessionMap() {
         return schSessionMap;
     }
 
-    public void setSchSessionMap(Map<Integer, SchSession> schSessionMap) {
+    public void setSchSessionMap(ConcurrentMap<Integer, SchSession> schSessionMap) {
         this.schSessionMap = schSessionMap;
     }
 
+    public Map<Integer, BroadcastGroup> getBroadcastGroupMap() {
+        return broadcastGroupMap;
+    }
+
+    public void setBroadcastGroupMap(Map<Integer, BroadcastGroup> broadcastGroupMap) {
+        this.broadcastGroupMap = broadcastGroupMap;
+    }
+
+    public AtomicInteger getLastGroupId() {
+        return lastGroupId;
+    }
+
+    public void setLastGroupId(AtomicInteger lastGroupId) {
+        this.lastGroupId = lastGroupId;
+    }
+
+    public InstanceIdAllocator getInstanceIdAllocator() {
+        return instanceIdAllocator;
+    }
+
+    public void setInstanceIdAllocator(InstanceIdAllocator instanceIdAllocator) {
+        this.instanceIdAllocator = instanceIdAllocator;
+    }
 }
@@ -15,23 +15,87 @@
  */
 package com.keybox.manage.model;
 
-import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class UserSessionsOutput {
 
     //instance id, host output
-    Map<Integer, SessionHostOutput> sessionOutputMap = new ConcurrentHashMap<Integer,SessionHostOutput>();
+    ConcurrentMap<Integer, SessionHostOutput> sessionOutputMap = new ConcurrentHashMap<Integer,SessionHostOutput>();
 
+    //task that pushes output to the web socket
+    volatile Runnable outputTask;
 
-    public Map<Integer, SessionHostOutput> getSessionOutputMap() {
+    //set when a flush has been scheduled but has not yet collected the output
+    AtomicBoolean flushPending = new AtomicBoolean(false);
+
+    //set while a message is being sent to the web socket
+    volatile boolean sendInFlight = false;
+
+    //time the web socket closed while the terminals are kept for a reconnect, 0 if attached
+    volatile long detachedTm = 0;
+
+    //max output chars per second sent for each terminal of the user, 0 for no limit
+    volatile int outputRateLimit = 0;
+
+    //set when a flush has been scheduled to send output held by the rate limit
+    AtomicBoolean heldFlushPending = new AtomicBoolean(false);
+
+
+    public ConcurrentMap<Integer, SessionHostOutput> getSessionOutputMap() {
         return sessionOutputMap;
     }
 
-    public void setSessionOutputMap(Map<Integer, SessionHostOutput> sessionOutputMap) {
+    public void setSessionOutputMap(ConcurrentMap<Integer, SessionHostOutput> sessionOutputMap) {
         this.sessionOutputMap = sessionOutputMap;
     }
-}
 
+    public Runnable getOutputTask() {
+        return outputTask;
+    }
 
+    public void setOutputTask(Runnable outputTask) {
+        this.outputTask = outputTask;
+    }
+
+    public AtomicBoolean getFlushPending() {
+        return flushPending;
+    }
+
+    public void setFlushPending(AtomicBoolean flushPending) {
+        this.flushPending = flushPending;
+    }
+
+    public boolean isSendInFlight() {
+        return sendInFlight;
+    }
 
+    public void setSendInFlight(boolean sendInFlight) {
+        this.sendInFlight = sendInFlight;
+    }
+
+    public long getDetachedTm() {
+        return detachedTm;
+    }
+
+    public void setDetachedTm(long detachedTm) {
+        this.detachedTm = detachedTm;
+    }
+
+    public int getOutputRateLimit() {
+        return outputRateLimit;
+    }
+
+    public void setOutputRateLimit(int outputRateLimit) {
+        this.outputRateLimit = outputRateLimit;
+    }
+
+    public AtomicBoolean getHeldFlushPending() {
+        return heldFlushPending;
+    }
+
+    public void setHeldFlushPending(AtomicBoolean heldFlushPending) {
+        this.heldFlushPending = heldFlushPending;
+    }
+}
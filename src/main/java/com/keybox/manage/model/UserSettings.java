@@ -30,6 +30,7 @@ public class UserSettings {
     String theme;
     Integer ptyWidth;
     Integer ptyHeight;
+    Integer outputRateLimit;
 
     public String[] getColors() {
         return colors;
@@ -100,4 +101,12 @@ public class UserSettings {
     public void setPtyHeight(Integer ptyHeight) {
         this.ptyHeight = ptyHeight;
     }
+
+    public Integer getOutputRateLimit() {
+        return outputRateLimit;
+    }
+
+    public void setOutputRateLimit(Integer outputRateLimit) {
+        this.outputRateLimit = outputRateLimit;
+    }
 }
@@ -15,23 +15,29 @@
  */
 package com.keybox.manage.socket;
 
-import com.google.gson.Gson;
 import com.keybox.common.util.AppConfig;
 import com.keybox.common.util.AuthUtil;
 import com.keybox.manage.action.SecureShellAction;
 import com.keybox.manage.db.AuthDB;
+import com.keybox.manage.model.BroadcastGroup;
 import com.keybox.manage.model.SchSession;
 import com.keybox.manage.model.UserSchSessions;
 import com.keybox.manage.task.SentOutputTask;
+import com.keybox.manage.task.SessionInputTask;
+import com.keybox.manage.util.BroadcastUtil;
+import com.keybox.manage.util.ExecutorUtil;
+import com.keybox.manage.util.SSHUtil;
 import com.keybox.manage.util.SessionOutputUtil;
 import org.apache.commons.lang3.StringUtils;
 
 import javax.servlet.http.HttpSession;
 import javax.websocket.*;
 import javax.websocket.server.ServerEndpoint;
-import java.io.IOException;
-import java.util.ArrayList;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -40,9 +46,39 @@ import java.util.Map;
 @ServerEndpoint(value = "/admin/terms.ws", configurator = GetHttpSessionConfigurator.class)
 @SuppressWarnings("unchecked")
 public class SecureShellWS {
+
+    //allow clients to request binary output frames
+    private static final boolean BINARY_OUTPUT = "true".equals(AppConfig.getProperty("binaryOutput", "true"));
+
+    //binary input frame types
+    static final int KEY_CODE_INPUT = 1;
+    static final int COMMAND_INPUT = 2;
+    static final int GROUP_KEY_CODE_INPUT = 3;
+    static final int GROUP_COMMAND_INPUT = 4;
+    //type byte and instance id count
+    static final int INPUT_HEADER_SIZE = 3;
+
+    private static final long TIMEOUT_UPDATE_INTERVAL = 60000;
+
+    //minutes without input before the web socket is closed, 0 or less for no timeout
+    public static final long WEBSOCKET_TIMEOUT = StringUtils.isNotEmpty(AppConfig.getProperty("websocketTimeout")) ? Long.parseLong(AppConfig.getProperty("websocketTimeout")) * 60000 : 0;
+    //close code for an idle timeout, the client does not reconnect after it
+    public static final CloseReason.CloseCode IDLE_TIMEOUT_CLOSE = new CloseReason.CloseCode() {
+        public int getCode() {
+            return 4000;
+        }
+    };
+
+    //seconds terminals are kept after the web socket closes so a reconnect can resume them, 0 to disconnect on close
+    public static final long RESUME_GRACE_PERIOD = Long.parseLong(AppConfig.getProperty("resumeGracePeriod", "60")) * 1000;
+
     private HttpSession httpSession;
     private Session session;
     private Long sessionId = null;
+    private SentOutputTask outputTask = null;
+    private long lastTimeoutUpdate = 0;
+    //time of the last input, checked for the idle timeout
+    private volatile long lastInputTm = System.currentTimeMillis();
 
 
 
@@ -50,202 +86,326 @@ public class SecureShellWS {
     public void onOpen(Session session, EndpointConfig config) {
 
 
-        //set websocket timeout
-        if(StringUtils.isNotEmpty(AppConfig.getProperty("websocketTimeout"))){
-            session.setMaxIdleTimeout( Long.parseLong(AppConfig.getProperty("websocketTimeout"))* 60000);
-        } else {
-            session.setMaxIdleTimeout(0);
+        //output keeps the socket busy so the timeout is for input and the socket is closed with its own code
+        session.setMaxIdleTimeout(0);
+        if (WEBSOCKET_TIMEOUT > 0) {
+            ExecutorUtil.scheduleMaintenance(new IdleCheck(), WEBSOCKET_TIMEOUT);
         }
 
         this.httpSession = (HttpSession) config.getUserProperties().get(HttpSession.class.getName());
         this.sessionId = AuthDB.getUserIdByAuthToken(AuthUtil.getAuthToken(httpSession));
         this.session = session;
 
-        Runnable run=new SentOutputTask(sessionId, session);
-        Thread thread = new Thread(run);
-        thread.start();
+        //use binary output if the client asked for it and it is enabled
+        String format = SentOutputTask.JSON_FORMAT;
+        List<String> formatParam = session.getRequestParameterMap().get("format");
+        if (BINARY_OUTPUT && formatParam != null && formatParam.contains(SentOutputTask.BINARY_FORMAT)) {
+            format = SentOutputTask.BINARY_FORMAT;
+        }
 
-    }
+        //compress binary output if the client can inflate it
+        List<String> compressParam = session.getRequestParameterMap().get("compress");
+        boolean compress = compressParam != null && compressParam.contains(SentOutputTask.DEFLATE_COMPRESSION);
 
-    @OnMessage
-    public void onMessage(String message) {
+        //output after the sequence the client received for each terminal is sent first when it reconnects
+        Map<Integer, Long> resumeFrom = null;
+        List<String> resumeParam = session.getRequestParameterMap().get("resume");
+        if (resumeParam != null && !resumeParam.isEmpty()) {
+            resumeFrom = parseResume(resumeParam.get(0));
+        }
 
-        if (session.isOpen()) {
+        //send the changed cells of the terminal screens instead of the raw output if the client asked for it and it is enabled
+        List<String> modeParam = session.getRequestParameterMap().get("mode");
+        boolean screenMode = SessionOutputUtil.SCREEN_UPDATES && modeParam != null && modeParam.contains(SentOutputTask.SCREEN_MODE);
 
-            if (StringUtils.isNotEmpty(message)) {
+        //output is pushed as it arrives from the ssh sessions
+        this.outputTask = new SentOutputTask(sessionId, session, format, compress, resumeFrom, screenMode);
+        SessionOutputUtil.registerOutputTask(sessionId, outputTask);
 
+    }
 
-                Map jsonRoot = new Gson().fromJson(message, Map.class);
+    /**
+     * handles input frames of a type byte, an unsigned short count of instance ids, the instance ids as
+     * unsigned shorts, and either an unsigned short key code or the UTF-8 bytes of the command.
+     * Group frame types add an int broadcast group id after the type byte, the instance ids are only
+     * read if the group has been invalidated. The buffer is read in place and input is queued
+     * for each terminal so a host that is slow to read input does not hold up the others
+     *
+     * @param message binary input frame
+     */
+    @OnMessage
+    public void onMessage(ByteBuffer message) {
 
-                String command = (String) jsonRoot.get("command");
+        if (session.isOpen() && message.remaining() >= INPUT_HEADER_SIZE) {
 
-                Integer keyCode = null;
-                Double keyCodeDbl = (Double) jsonRoot.get("keyCode");
-                if (keyCodeDbl != null) {
-                    keyCode = keyCodeDbl.intValue();
+            int type = message.get();
+            Integer groupId = null;
+            if (type == GROUP_KEY_CODE_INPUT || type == GROUP_COMMAND_INPUT) {
+                if (message.remaining() < INPUT_HEADER_SIZE + 3) {
+                    return;
                 }
+                groupId = message.getInt();
+                type = (type == GROUP_KEY_CODE_INPUT) ? KEY_CODE_INPUT : COMMAND_INPUT;
+            }
+            int count = message.getShort() & 0xffff;
+            int idPos = message.position();
+            int dataPos = idPos + count * 2;
+            if (dataPos > message.limit()) {
+                return;
+            }
 
-                for (String idStr : (ArrayList<String>) jsonRoot.get("id")) {
-                    Integer id = Integer.parseInt(idStr);
-
-                    //get servletRequest.getSession() for user
-                    UserSchSessions userSchSessions = SecureShellAction.getUserSchSessionMap().get(sessionId);
-                    if (userSchSessions != null) {
-                        SchSession schSession = userSchSessions.getSchSessionMap().get(id);
-                        if (keyCode != null) {
-                            if (keyMap.containsKey(keyCode)) {
-                                try {
-                                    schSession.getCommander().write(keyMap.get(keyCode));
-                                } catch (IOException ex) {
-                                    ex.printStackTrace();
-                                }
-                            }
-                        } else {
-                            schSession.getCommander().print(command);
+            byte[] data;
+            if (type == KEY_CODE_INPUT) {
+                if (message.limit() - dataPos < 2) {
+                    return;
+                }
+                int keyCode = message.getShort(dataPos) & 0xffff;
+                if (keyCode >= keyMap.length || keyMap[keyCode] == null) {
+                    return;
+                }
+                data = keyMap[keyCode];
+            } else if (type == COMMAND_INPUT) {
+                //copied once since the container reuses the buffer, the copy is shared by every target
+                data = new byte[message.limit() - dataPos];
+                message.position(dataPos);
+                message.get(data);
+            } else {
+                return;
+            }
+
+            UserSchSessions userSchSessions = getUserSchSessions();
+            if (userSchSessions != null) {
+                BroadcastGroup group = (groupId != null) ? BroadcastUtil.getGroup(userSchSessions, groupId) : null;
+                if (group != null) {
+                    SessionInputTask[] inputTasks = group.getInputTasks();
+                    for (int i = 0; i < inputTasks.length; i++) {
+                        inputTasks[i].add(toCharset(data, type, group.getCharsets()[i]));
+                    }
+                } else {
+                    Map<Integer, SchSession> schSessionMap = userSchSessions.getSchSessionMap();
+                    for (int i = 0; i < count; i++) {
+                        SchSession schSession = schSessionMap.get(message.getShort(idPos + i * 2) & 0xffff);
+                        if (schSession != null && schSession.getInputTask() != null) {
+                            schSession.getInputTask().add(toCharset(data, type, schSession.getCharset()));
                         }
                     }
-
                 }
-                //update timeout
-                AuthUtil.setTimeout(httpSession);
+            }
 
+            //update timeout
+            updateTimeout();
+        }
+    }
 
-            }
+    /**
+     * converts UTF-8 command input to the charset of the host, key codes are sent as is
+     *
+     * @param data    input bytes
+     * @param type    input frame type
+     * @param charset charset of the host
+     * @return input bytes in the charset of the host
+     */
+    private static byte[] toCharset(byte[] data, int type, Charset charset) {
+
+        if (type != COMMAND_INPUT || charset == null || StandardCharsets.UTF_8.equals(charset)) {
+            return data;
         }
+        return new String(data, StandardCharsets.UTF_8).getBytes(charset);
+    }
 
+    /**
+     * returns the terminals for the user, read from the session map each time since the entry is
+     * replaced when the user's terminals are all disconnected and new ones are opened
+     *
+     * @return terminals for user or null if none are open
+     */
+    private UserSchSessions getUserSchSessions() {
+        return SecureShellAction.getUserSchSessionMap().get(sessionId);
+    }
+
+    /**
+     * updates the http session timeout at most once per interval rather than on every keystroke
+     */
+    private void updateTimeout() {
 
+        long now = System.currentTimeMillis();
+        lastInputTm = now;
+        if (now - lastTimeoutUpdate > TIMEOUT_UPDATE_INTERVAL) {
+            AuthUtil.setTimeout(httpSession);
+            lastTimeoutUpdate = now;
+        }
     }
 
     @OnClose
     public void onClose() {
 
+        if (outputTask != null) {
+            outputTask.close();
+
+            //keep the terminals and their output for a reconnect
+            final long detachedTm = SessionOutputUtil.detachOutputTask(sessionId, outputTask);
+            if (detachedTm > 0 && RESUME_GRACE_PERIOD > 0) {
+                final Long userId = sessionId;
+                ExecutorUtil.scheduleMaintenance(new Runnable() {
+                    public void run() {
+                        if (SessionOutputUtil.isDetached(userId, detachedTm)) {
+                            SSHUtil.disconnectUser(userId, SecureShellAction.getUserSchSessionMap());
+                        }
+                    }
+                }, RESUME_GRACE_PERIOD);
+                return;
+            }
+            //terminals are in use by a web socket that opened before this one closed
+            if (detachedTm == 0 && SessionOutputUtil.isWebSocketOpen(sessionId)) {
+                return;
+            }
+        }
+
         if (SecureShellAction.getUserSchSessionMap() != null) {
-            UserSchSessions userSchSessions = SecureShellAction.getUserSchSessionMap().get(sessionId);
-            if (userSchSessions != null) {
-                Map<Integer, SchSession> schSessionMap = userSchSessions.getSchSessionMap();
-
-                for (Integer sessionKey : schSessionMap.keySet()) {
-
-                    SchSession schSession = schSessionMap.get(sessionKey);
-
-                    //disconnect ssh session
-                    schSession.getChannel().disconnect();
-                    schSession.getSession().disconnect();
-                    schSession.setChannel(null);
-                    schSession.setSession(null);
-                    schSession.setInputToChannel(null);
-                    schSession.setCommander(null);
-                    schSession.setOutFromChannel(null);
-                    schSession = null;
-                    //remove from map
-                    schSessionMap.remove(sessionKey);
-                }
+            SSHUtil.disconnectUser(sessionId, SecureShellAction.getUserSchSessionMap());
+        }
 
+    }
 
-                //clear and remove session map for user
-                schSessionMap.clear();
-                SecureShellAction.getUserSchSessionMap().remove(sessionId);
-                SessionOutputUtil.removeUserSession(sessionId);
+    /**
+     * parses the sequence received by the client for each terminal
+     *
+     * @param resume comma separated instance id and sequence pairs, ie 1:2048,2:512
+     * @return sequence for each instance id
+     */
+    private static Map<Integer, Long> parseResume(String resume) {
+
+        Map<Integer, Long> resumeFrom = new HashMap<>();
+        for (String pair : StringUtils.split(resume, ',')) {
+            String[] values = StringUtils.split(pair, ':');
+            if (values.length == 2 && StringUtils.isNumeric(values[0]) && StringUtils.isNumeric(values[1])) {
+                try {
+                    resumeFrom.put(Integer.parseInt(values[0]), Long.parseLong(values[1]));
+                } catch (NumberFormatException ex) {
+                    ex.printStackTrace();
+                }
             }
         }
-
-
+        return resumeFrom;
     }
 
 
     /**
-     * Maps key press events to the ascii values
+     * Maps key press events to the ascii values, indexed by key code
      */
-    static Map<Integer, byte[]> keyMap = new HashMap<Integer, byte[]>();
+    static byte[][] keyMap = new byte[256][];
 
     static {
         //ESC
-        keyMap.put(27, new byte[]{(byte) 0x1b});
+        keyMap[27] = new byte[]{(byte) 0x1b};
         //ENTER
-        keyMap.put(13, new byte[]{(byte) 0x0d});
+        keyMap[13] = new byte[]{(byte) 0x0d};
         //LEFT
-        keyMap.put(37, new byte[]{(byte) 0x1b, (byte) 0x4f, (byte) 0x44});
+        keyMap[37] = new byte[]{(byte) 0x1b, (byte) 0x4f, (byte) 0x44};
         //UP
-        keyMap.put(38, new byte[]{(byte) 0x1b, (byte) 0x4f, (byte) 0x41});
+        keyMap[38] = new byte[]{(byte) 0x1b, (byte) 0x4f, (byte) 0x41};
         //RIGHT
-        keyMap.put(39, new byte[]{(byte) 0x1b, (byte) 0x4f, (byte) 0x43});
+        keyMap[39] = new byte[]{(byte) 0x1b, (byte) 0x4f, (byte) 0x43};
         //DOWN
-        keyMap.put(40, new byte[]{(byte) 0x1b, (byte) 0x4f, (byte) 0x42});
+        keyMap[40] = new byte[]{(byte) 0x1b, (byte) 0x4f, (byte) 0x42};
         //BS
-        keyMap.put(8, new byte[]{(byte) 0x7f});
+        keyMap[8] = new byte[]{(byte) 0x7f};
         //TAB
-        keyMap.put(9, new byte[]{(byte) 0x09});
+        keyMap[9] = new byte[]{(byte) 0x09};
         //CTR
-        keyMap.put(17, new byte[]{});
+        keyMap[17] = new byte[]{};
         //DEL
-        keyMap.put(46, "\033[3~".getBytes());
+        keyMap[46] = "\033[3~".getBytes();
         //CTR-A
-        keyMap.put(65, new byte[]{(byte) 0x01});
+        keyMap[65] = new byte[]{(byte) 0x01};
         //CTR-B
-        keyMap.put(66, new byte[]{(byte) 0x02});
+        keyMap[66] = new byte[]{(byte) 0x02};
         //CTR-C
-        keyMap.put(67, new byte[]{(byte) 0x03});
+        keyMap[67] = new byte[]{(byte) 0x03};
         //CTR-D
-        keyMap.put(68, new byte[]{(byte) 0x04});
+        keyMap[68] = new byte[]{(byte) 0x04};
         //CTR-E
-        keyMap.put(69, new byte[]{(byte) 0x05});
+        keyMap[69] = new byte[]{(byte) 0x05};
         //CTR-F
-        keyMap.put(70, new byte[]{(byte) 0x06});
+        keyMap[70] = new byte[]{(byte) 0x06};
         //CTR-G
-        keyMap.put(71, new byte[]{(byte) 0x07});
+        keyMap[71] = new byte[]{(byte) 0x07};
         //CTR-H
-        keyMap.put(72, new byte[]{(byte) 0x08});
+        keyMap[72] = new byte[]{(byte) 0x08};
         //CTR-I
-        keyMap.put(73, new byte[]{(byte) 0x09});
+        keyMap[73] = new byte[]{(byte) 0x09};
         //CTR-J
-        keyMap.put(74, new byte[]{(byte) 0x0A});
+        keyMap[74] = new byte[]{(byte) 0x0A};
         //CTR-K
-        keyMap.put(75, new byte[]{(byte) 0x0B});
+        keyMap[75] = new byte[]{(byte) 0x0B};
         //CTR-L
-        keyMap.put(76, new byte[]{(byte) 0x0C});
+        keyMap[76] = new byte[]{(byte) 0x0C};
         //CTR-M
-        keyMap.put(77, new byte[]{(byte) 0x0D});
+        keyMap[77] = new byte[]{(byte) 0x0D};
         //CTR-N
-        keyMap.put(78, new byte[]{(byte) 0x0E});
+        keyMap[78] = new byte[]{(byte) 0x0E};
         //CTR-O
-        keyMap.put(79, new byte[]{(byte) 0x0F});
+        keyMap[79] = new byte[]{(byte) 0x0F};
         //CTR-P
-        keyMap.put(80, new byte[]{(byte) 0x10});
+        keyMap[80] = new byte[]{(byte) 0x10};
         //CTR-Q
-        keyMap.put(81, new byte[]{(byte) 0x11});
+        keyMap[81] = new byte[]{(byte) 0x11};
         //CTR-R
-        keyMap.put(82, new byte[]{(byte) 0x12});
+        keyMap[82] = new byte[]{(byte) 0x12};
         //CTR-S
-        keyMap.put(83, new byte[]{(byte) 0x13});
+        keyMap[83] = new byte[]{(byte) 0x13};
         //CTR-T
-        keyMap.put(84, new byte[]{(byte) 0x14});
+        keyMap[84] = new byte[]{(byte) 0x14};
         //CTR-U
-        keyMap.put(85, new byte[]{(byte) 0x15});
+        keyMap[85] = new byte[]{(byte) 0x15};
         //CTR-V
-        keyMap.put(86, new byte[]{(byte) 0x16});
+        keyMap[86] = new byte[]{(byte) 0x16};
         //CTR-W
-        keyMap.put(87, new byte[]{(byte) 0x17});
+        keyMap[87] = new byte[]{(byte) 0x17};
         //CTR-X
-        keyMap.put(88, new byte[]{(byte) 0x18});
+        keyMap[88] = new byte[]{(byte) 0x18};
         //CTR-Y
-        keyMap.put(89, new byte[]{(byte) 0x19});
+        keyMap[89] = new byte[]{(byte) 0x19};
         //CTR-Z
-        keyMap.put(90, new byte[]{(byte) 0x1A});
+        keyMap[90] = new byte[]{(byte) 0x1A};
         //CTR-[
-        keyMap.put(219, new byte[]{(byte) 0x1B});
+        keyMap[219] = new byte[]{(byte) 0x1B};
         //CTR-]
-        keyMap.put(221, new byte[]{(byte) 0x1D});
+        keyMap[221] = new byte[]{(byte) 0x1D};
         //INSERT
-        keyMap.put(45, "\033[2~".getBytes());
+        keyMap[45] = "\033[2~".getBytes();
         //PG UP
-        keyMap.put(33, "\033[5~".getBytes());
+        keyMap[33] = "\033[5~".getBytes();
         //PG DOWN
-        keyMap.put(34, "\033[6~".getBytes());
+        keyMap[34] = "\033[6~".getBytes();
         //END
-        keyMap.put(35, "\033[4~".getBytes());
+        keyMap[35] = "\033[4~".getBytes();
         //HOME
-        keyMap.put(36, "\033[1~".getBytes());
+        keyMap[36] = "\033[1~".getBytes();
+
+    }
 
+    /**
+     * closes the web socket once there has been no input for the timeout
+     */
+    private class IdleCheck implements Runnable {
+
+        public void run() {
+
+            if (!session.isOpen()) {
+                return;
+            }
+            long idle = System.currentTimeMillis() - lastInputTm;
+            if (idle < WEBSOCKET_TIMEOUT) {
+                ExecutorUtil.scheduleMaintenance(this, WEBSOCKET_TIMEOUT - idle);
+                return;
+            }
+            try {
+                session.close(new CloseReason(IDLE_TIMEOUT_CLOSE, "Idle timeout"));
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
     }
 
 }
@@ -15,52 +15,197 @@
  */
 package com.keybox.manage.task;
 
+import com.keybox.manage.model.SchSession;
+import com.keybox.manage.model.SessionHostOutput;
+import com.keybox.manage.model.UserSchSessions;
+import com.keybox.manage.util.BroadcastUtil;
+import com.keybox.manage.util.SSHUtil;
 import com.keybox.manage.util.SessionOutputUtil;
+import com.keybox.manage.util.SessionRecorder;
 import com.keybox.manage.model.SessionOutput;
 
-import java.io.BufferedReader;
+import java.io.IOException;
 import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 
 /**
- * Task to watch for output read from the ssh session stream
+ * Task to watch for output read from the ssh session stream.
+ * <p>
+ * Bytes are decoded with the charset of the host by a decoder kept for the stream, so a multibyte
+ * sequence split across reads is carried over to the next read instead of being replaced
  */
 public class SecureShellTask implements Runnable {
 
+    //initial and max size of the read buffer
+    private static final int MIN_BUFFER_SIZE = 1024;
+    private static final int MAX_BUFFER_SIZE = 32 * 1024;
+
+    //bytes read and chars decoded by all readers and time spent decoding
+    private static AtomicLong decodedBytes = new AtomicLong(0);
+    private static AtomicLong decodedChars = new AtomicLong(0);
+    private static AtomicLong decodeNanos = new AtomicLong(0);
+
     InputStream outFromChannel;
     SessionOutput sessionOutput;
-
-    public SecureShellTask(SessionOutput sessionOutput, InputStream outFromChannel) {
+    SessionRecorder recorder;
+    Charset charset;
+    SchSession schSession;
+    UserSchSessions userSchSessions;
+    //output of the terminal, written directly so output never goes to a terminal that reused the instance id
+    SessionHostOutput sessionHostOutput;
+
+    /**
+     * @param sessionOutput   session output
+     * @param schSession      terminal session to read the output of
+     * @param userSchSessions terminals of the user, the instance id is released once the reader exits
+     * @param recorder        recorder or null
+     */
+    public SecureShellTask(SessionOutput sessionOutput, SchSession schSession, UserSchSessions userSchSessions, SessionRecorder recorder) {
 
         this.sessionOutput = sessionOutput;
-        this.outFromChannel = outFromChannel;
+        this.schSession = schSession;
+        this.userSchSessions = userSchSessions;
+        this.outFromChannel = schSession.getOutFromChannel();
+        this.charset = schSession.getCharset();
+        this.recorder = recorder;
     }
 
     public void run() {
-        InputStreamReader isr = new InputStreamReader(outFromChannel);
-        BufferedReader br = new BufferedReader(isr);
+
+        CharsetDecoder decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
         try {
 
-            SessionOutputUtil.addOutput(sessionOutput.getSessionId(), sessionOutput.getHostSystemId(), sessionOutput);
+            sessionHostOutput = SessionOutputUtil.addOutput(sessionOutput.getSessionId(), sessionOutput.getHostSystemId(), sessionOutput);
 
-            char[] buff = new char[1024];
+            ByteBuffer bytes = ByteBuffer.allocate(MIN_BUFFER_SIZE);
+            CharBuffer chars = CharBuffer.allocate(MIN_BUFFER_SIZE);
             int read;
-            while((read = br.read(buff)) != -1) {
-
-                SessionOutputUtil.addToOutput(sessionOutput.getSessionId(), sessionOutput.getInstanceId(), buff,0,read);
-                Thread.sleep(50);
+            while ((read = outFromChannel.read(bytes.array(), bytes.position(), bytes.remaining())) != -1) {
+                bytes.position(bytes.position() + read);
+
+                //drain whatever else is already available so a burst is added as one chunk
+                while (bytes.hasRemaining() && outFromChannel.available() > 0) {
+                    int next = outFromChannel.read(bytes.array(), bytes.position(), bytes.remaining());
+                    if (next == -1) {
+                        break;
+                    }
+                    bytes.position(bytes.position() + next);
+                    read = read + next;
+                }
+                boolean full = !bytes.hasRemaining();
+
+                //an incomplete sequence at the end stays in the buffer for the next read
+                bytes.flip();
+                decode(decoder, bytes, chars, false, read);
+                bytes.compact();
+
+                //grow the buffer while output is streaming and shrink it back once output trickles
+                if (full && bytes.capacity() < MAX_BUFFER_SIZE) {
+                    bytes = resize(bytes, bytes.capacity() * 2);
+                    chars = CharBuffer.allocate(bytes.capacity());
+                } else if (read < MIN_BUFFER_SIZE && bytes.capacity() > MIN_BUFFER_SIZE) {
+                    bytes = resize(bytes, MIN_BUFFER_SIZE);
+                    chars = CharBuffer.allocate(MIN_BUFFER_SIZE);
+                }
             }
 
-
-
-            SessionOutputUtil.removeOutput(sessionOutput.getSessionId(), sessionOutput.getInstanceId());
+            //bytes left from a sequence the host never finished
+            bytes.flip();
+            decode(decoder, bytes, chars, true, 0);
 
         } catch (Exception ex) {
 
             ex.printStackTrace();
+        } finally {
+            if (recorder != null) {
+                recorder.close();
+            }
+            Integer instanceId = sessionOutput.getInstanceId();
+            if (sessionHostOutput != null) {
+                SessionOutputUtil.removeOutput(sessionOutput.getSessionId(), instanceId, sessionHostOutput);
+            }
+            //channel has closed so input can no longer be broadcast to it
+            BroadcastUtil.invalidateGroups(sessionOutput.getSessionId(), instanceId);
+            //terminal is removed if the host closed it, unless it was already removed by a disconnect
+            if (userSchSessions.getSchSessionMap().remove(instanceId, schSession)) {
+                SSHUtil.disconnect(schSession);
+            }
+            //released last so a new terminal can't get the id while it is still in use
+            userSchSessions.getInstanceIdAllocator().release(instanceId);
         }
     }
 
+    /**
+     * decodes the bytes and adds the chars to the output
+     *
+     * @param decoder    decoder for the stream
+     * @param bytes      bytes ready to be read
+     * @param chars      buffer for the decoded chars
+     * @param endOfInput true if no more bytes will be read
+     * @param count      number of bytes read
+     */
+    private void decode(CharsetDecoder decoder, ByteBuffer bytes, CharBuffer chars, boolean endOfInput, int count) {
+
+        CoderResult result;
+        do {
+            long start = System.nanoTime();
+            result = decoder.decode(bytes, chars, endOfInput);
+            if (endOfInput && result.isUnderflow()) {
+                result = decoder.flush(chars);
+            }
+            decodeNanos.addAndGet(System.nanoTime() - start);
+            if (chars.position() > 0) {
+                decodedChars.addAndGet(chars.position());
+                SessionOutputUtil.addToOutput(sessionOutput.getSessionId(), sessionHostOutput, chars.array(), 0, chars.position());
+                if (recorder != null) {
+                    recorder.recordOutput(chars.array(), 0, chars.position());
+                }
+                chars.clear();
+            }
+        } while (result.isOverflow());
+        decodedBytes.addAndGet(count);
+    }
+
+    /**
+     * copies the bytes carried over to a buffer of a new size
+     *
+     * @param bytes    buffer ready for the next read
+     * @param capacity new size
+     * @return new buffer ready for the next read
+     */
+    private static ByteBuffer resize(ByteBuffer bytes, int capacity) {
+
+        ByteBuffer buffer = ByteBuffer.allocate(capacity);
+        bytes.flip();
+        buffer.put(bytes);
+        return buffer;
+    }
+
+    /**
+     * returns bytes read and chars decoded by the ssh readers
+     *
+     * @return map of metrics
+     */
+    public static Map<String, Object> getStats() {
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("decodedBytes", decodedBytes.get());
+        stats.put("decodedChars", decodedChars.get());
+        stats.put("decodeMillis", decodeNanos.get() / 1000000.0);
+        return stats;
+    }
+
 }
@@ -16,46 +16,276 @@
 package com.keybox.manage.task;
 
 import com.google.gson.Gson;
+import com.keybox.common.util.AppConfig;
 import com.keybox.manage.model.SessionOutput;
-import com.keybox.manage.util.DBUtils;
+import com.keybox.manage.util.ExecutorUtil;
 import com.keybox.manage.util.SessionOutputUtil;
 
+import javax.websocket.SendHandler;
+import javax.websocket.SendResult;
 import javax.websocket.Session;
-import java.sql.Connection;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
 
 /**
- * class to send output to web socket client
+ * class to send output to web socket client when output is available
+ * <p>
+ * Output is sent as a json list or, if the client asked for binary output, as a binary message that starts
+ * with a flags byte followed by frames made up of the instance id (int), the sequence after the output (long),
+ * the output length (int) and the UTF-8 output bytes. If the client accepts deflate, frames over the threshold are compressed and the
+ * COMPRESSED flag is set. In screen mode the output of each terminal is the escape sequences that update the
+ * client screen, sent at most once per frame interval
  */
 public class SentOutputTask implements Runnable {
 
+    public static final String JSON_FORMAT = "json";
+    public static final String BINARY_FORMAT = "binary";
+    public static final String DEFLATE_COMPRESSION = "deflate";
+    public static final String RAW_MODE = "raw";
+    public static final String SCREEN_MODE = "screen";
+
+    //compress binary messages larger than the threshold in bytes
+    public static final boolean COMPRESS_OUTPUT = "true".equals(AppConfig.getProperty("compressOutput", "true"));
+    public static final int COMPRESS_THRESHOLD = Integer.parseInt(AppConfig.getProperty("compressThreshold", "512"));
+    public static final int COMPRESS_LEVEL = Integer.parseInt(AppConfig.getProperty("compressLevel", "1"));
+
+    private static final byte COMPRESSED = 1;
+    private static final int FRAME_HEADER_SIZE = 16;
+
+    private static final Gson gson = new Gson();
 
     Session session;
     Long sessionId;
+    boolean binary;
+    boolean compress;
+    boolean sending = false;
+    //sequence received by a reconnected client for each instance id, cleared once the missed output is sent
+    Map<Integer, Long> resumeFrom;
+    boolean screenMode;
+    long lastFrameTm = 0;
+
+    //called by the container when an async send completes
+    SendHandler sendHandler = new SendHandler() {
+        @Override
+        public void onResult(SendResult result) {
+            if (!result.isOK() && result.getException() != null) {
+                result.getException().printStackTrace();
+            }
+            synchronized (SentOutputTask.this) {
+                sending = false;
+            }
+            //releases paused readers and sends output that arrived during the send
+            SessionOutputUtil.sendCompleted(sessionId);
+        }
+    };
+
+    //reused for each binary message, only used while holding the task lock
+    CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+    ByteBuffer frameBuffer = ByteBuffer.allocate(8192);
+    Deflater deflater;
+    byte[] compressBuffer;
+
+    //bytes before and after compression and time spent compressing
+    AtomicLong uncompressedBytes = new AtomicLong(0);
+    AtomicLong compressedBytes = new AtomicLong(0);
+    AtomicLong compressNanos = new AtomicLong(0);
+    AtomicLong sentBytes = new AtomicLong(0);
 
     public SentOutputTask(Long sessionId, Session session) {
+        this(sessionId, session, JSON_FORMAT, false, null, false);
+    }
+
+    public SentOutputTask(Long sessionId, Session session, String format, boolean compress, Map<Integer, Long> resumeFrom, boolean screenMode) {
         this.sessionId = sessionId;
         this.session = session;
+        this.screenMode = screenMode;
+        //a client attaching in screen mode is sent the whole screen
+        this.resumeFrom = (screenMode && resumeFrom == null) ? new HashMap<Integer, Long>() : resumeFrom;
+        this.binary = BINARY_FORMAT.equals(format);
+        this.compress = this.binary && compress && COMPRESS_OUTPUT;
+        if (this.compress) {
+            deflater = new Deflater(COMPRESS_LEVEL);
+            compressBuffer = new byte[8192];
+        }
 
     }
 
+    /**
+     * sends pending output to the web socket. Scheduled by SessionOutputUtil when output arrives.
+     * Only one send is in flight at a time, output that arrives during a send is sent once it completes
+     */
     public void run() {
 
-        while (session.isOpen()) {
-            List<SessionOutput> outputList = SessionOutputUtil.getOutput(sessionId);
-            try {
-                if (outputList != null && !outputList.isEmpty()) {
-                    String json = new Gson().toJson(outputList);
-                    //send json to session
-                    this.session.getBasicRemote().sendText(json);
+        //serialize sends for the web socket
+        synchronized (this) {
+            if (session.isOpen() && !sending) {
+                //run again once the frame interval has passed, the pending flush is kept
+                if (screenMode) {
+                    long wait = lastFrameTm + SessionOutputUtil.SCREEN_FRAME_INTERVAL - System.currentTimeMillis();
+                    if (wait > 0) {
+                        ExecutorUtil.scheduleOutput(this, wait);
+                        return;
+                    }
+                }
+                List<SessionOutput> outputList = SessionOutputUtil.getOutput(sessionId, resumeFrom, screenMode);
+                resumeFrom = null;
+                try {
+                    if (outputList != null && !outputList.isEmpty()) {
+                        lastFrameTm = System.currentTimeMillis();
+                        sending = true;
+                        SessionOutputUtil.sendStarted(sessionId);
+                        if (binary) {
+                            ByteBuffer message = toFrames(outputList);
+                            if (compress && message.remaining() > COMPRESS_THRESHOLD) {
+                                message = deflate(message);
+                            }
+                            sentBytes.addAndGet(message.remaining());
+                            this.session.getAsyncRemote().sendBinary(message, sendHandler);
+                        } else {
+                            String json = gson.toJson(outputList);
+                            sentBytes.addAndGet(json.length());
+                            //send json to session
+                            this.session.getAsyncRemote().sendText(json, sendHandler);
+                        }
+                    }
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                    sending = false;
+                    SessionOutputUtil.sendCompleted(sessionId);
                 }
-                Thread.sleep(50);
-            } catch (Exception ex) {
-                ex.printStackTrace();
             }
+        }
+
+    }
+
+    /**
+     * encodes output as binary frames
+     *
+     * @param outputList session output list
+     * @return buffer ready to be sent
+     */
+    private ByteBuffer toFrames(List<SessionOutput> outputList) {
+
+        frameBuffer.clear();
+        //flags
+        frameBuffer.put((byte) 0);
+        for (SessionOutput sessionOutput : outputList) {
+            CharBuffer chars = CharBuffer.wrap(sessionOutput.getOutput());
+            ensureCapacity(FRAME_HEADER_SIZE + (int) Math.ceil(chars.remaining() * encoder.maxBytesPerChar()));
+
+            frameBuffer.putInt(sessionOutput.getInstanceId());
+            frameBuffer.putLong(sessionOutput.getSeq());
+            int lengthPos = frameBuffer.position();
+            frameBuffer.putInt(0);
+
+            encoder.reset();
+            encoder.encode(chars, frameBuffer, true);
+            encoder.flush(frameBuffer);
+            frameBuffer.putInt(lengthPos, frameBuffer.position() - lengthPos - 4);
+        }
+        frameBuffer.flip();
+        return frameBuffer;
+    }
+
+    /**
+     * compresses the frames of a binary message
+     *
+     * @param message binary message with flags byte
+     * @return compressed binary message with flags byte
+     */
+    private ByteBuffer deflate(ByteBuffer message) {
+
+        long start = System.nanoTime();
+
+        int length = message.remaining() - 1;
+        deflater.reset();
+        deflater.setInput(message.array(), message.arrayOffset() + message.position() + 1, length);
+        deflater.finish();
+
+        compressBuffer[0] = COMPRESSED;
+        int size = 1;
+        while (!deflater.finished()) {
+            if (size == compressBuffer.length) {
+                byte[] buffer = new byte[compressBuffer.length * 2];
+                System.arraycopy(compressBuffer, 0, buffer, 0, size);
+                compressBuffer = buffer;
+            }
+            size = size + deflater.deflate(compressBuffer, size, compressBuffer.length - size);
+        }
+
+        compressNanos.addAndGet(System.nanoTime() - start);
+        uncompressedBytes.addAndGet(length);
+        compressedBytes.addAndGet(size - 1);
+
+        return ByteBuffer.wrap(compressBuffer, 0, size);
+    }
+
+    /**
+     * returns format and compression metrics for the web socket
+     *
+     * @return map of metrics
+     */
+    public Map<String, Object> getStats() {
+
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("format", binary ? BINARY_FORMAT : JSON_FORMAT);
+        stats.put("compress", compress);
+        stats.put("mode", screenMode ? SCREEN_MODE : RAW_MODE);
+        stats.put("sentBytes", sentBytes.get());
+        if (compress) {
+            long compressed = compressedBytes.get();
+            long uncompressed = uncompressedBytes.get();
+            stats.put("uncompressedBytes", uncompressed);
+            stats.put("compressedBytes", compressed);
+            stats.put("compressionRatio", compressed > 0 ? (double) uncompressed / compressed : 0);
+            stats.put("compressMillis", compressNanos.get() / 1000000.0);
+        }
+        return stats;
+    }
 
+    /**
+     * @return true if the web socket is open
+     */
+    public boolean isOpen() {
+        return session.isOpen();
+    }
 
+    /**
+     * releases the deflater once the web socket is closed
+     */
+    public void close() {
+        synchronized (this) {
+            if (deflater != null) {
+                deflater.end();
+                deflater = null;
+                compress = false;
+            }
         }
+    }
 
+    /**
+     * grows the frame buffer if there is not enough space
+     *
+     * @param size number of bytes needed
+     */
+    private void ensureCapacity(int size) {
+
+        if (frameBuffer.remaining() < size) {
+            ByteBuffer buffer = ByteBuffer.allocate(Math.max(frameBuffer.capacity() * 2, frameBuffer.position() + size));
+            frameBuffer.flip();
+            buffer.put(frameBuffer);
+            frameBuffer = buffer;
+        }
     }
 }
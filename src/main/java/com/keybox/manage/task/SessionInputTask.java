@@ -0,0 +1,179 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.task;
+
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.util.ExecutorUtil;
+import com.keybox.manage.util.SessionRecorder;
+
+import java.io.PrintStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Task to write queued input to a ssh session so a host that is slow to accept input only delays itself.
+ * A turn writes up to a chunk of input before the task is queued again, and a host whose write stays
+ * blocked past the timeout has its input rejected and is given a spare thread until the write returns
+ */
+public class SessionInputTask implements Runnable {
+
+    //max bytes waiting to be written to a host before input is dropped
+    public static final int INPUT_QUEUE_LIMIT = Integer.parseInt(AppConfig.getProperty("inputQueueLimit", "1048576"));
+    //bytes written to a host in one turn before other hosts are written to
+    public static final int INPUT_WRITE_CHUNK = Integer.parseInt(AppConfig.getProperty("inputWriteChunk", "8192"));
+    //seconds a write can block before the host is treated as stalled
+    public static final long INPUT_WRITE_TIMEOUT = Long.parseLong(AppConfig.getProperty("inputWriteTimeout", "30")) * 1000;
+
+    private final PrintStream commander;
+    private final ConcurrentLinkedQueue<byte[]> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedBytes = new AtomicInteger(0);
+    private final AtomicLong droppedBytes = new AtomicLong(0);
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    //set while a write is blocked past the timeout and a spare thread was added for it
+    private final AtomicBoolean stalled = new AtomicBoolean(false);
+    //time the current write started, 0 if not writing
+    private volatile long writeStarted = 0;
+    private volatile boolean closed = false;
+    //records input sent to the host, null if not recording
+    private volatile SessionRecorder recorder;
+
+    public SessionInputTask(PrintStream commander) {
+        this.commander = commander;
+    }
+
+    public void setRecorder(SessionRecorder recorder) {
+        this.recorder = recorder;
+    }
+
+    /**
+     * queues input for the host and starts a writer if one is not already running.
+     * The array is not copied so it must not be modified after it is added
+     *
+     * @param data input bytes
+     */
+    public void add(byte[] data) {
+
+        if (closed || data.length == 0) {
+            return;
+        }
+        if (isStalled(System.currentTimeMillis()) || queuedBytes.get() + data.length > INPUT_QUEUE_LIMIT) {
+            droppedBytes.addAndGet(data.length);
+            return;
+        }
+        queuedBytes.addAndGet(data.length);
+        queue.offer(data);
+        SessionRecorder recorder = this.recorder;
+        if (recorder != null) {
+            recorder.recordInput(data);
+        }
+        schedule();
+    }
+
+    private void schedule() {
+
+        if (scheduled.compareAndSet(false, true)) {
+            try {
+                ExecutorUtil.executeInput(this);
+            } catch (RejectedExecutionException ex) {
+                scheduled.set(false);
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    public void run() {
+
+        try {
+            byte[] data;
+            int written = 0;
+            while (!closed && written < INPUT_WRITE_CHUNK && (data = queue.poll()) != null) {
+                writeStarted = System.currentTimeMillis();
+                commander.write(data, 0, data.length);
+                writeStarted = 0;
+                queuedBytes.addAndGet(-data.length);
+                written = written + data.length;
+            }
+        } catch (Exception ex) {
+            ex.printStackTrace();
+        } finally {
+            writeStarted = 0;
+            if (stalled.compareAndSet(true, false)) {
+                ExecutorUtil.removeStalledWriter();
+            }
+            scheduled.set(false);
+        }
+
+        //input left after the chunk or added after the queue was found empty
+        if (!closed && !queue.isEmpty()) {
+            schedule();
+        }
+    }
+
+    /**
+     * returns true if the current write has been blocked past the timeout, adding a spare input
+     * thread the first time it is seen so the blocked write no longer holds up other hosts
+     *
+     * @param now current time in ms
+     * @return true if the host is stalled
+     */
+    public boolean isStalled(long now) {
+
+        long started = writeStarted;
+        if (started == 0 || now - started < INPUT_WRITE_TIMEOUT) {
+            return false;
+        }
+        if (stalled.compareAndSet(false, true)) {
+            ExecutorUtil.addStalledWriter();
+            //the write may have returned before the flag was set
+            if (writeStarted != started && stalled.compareAndSet(true, false)) {
+                ExecutorUtil.removeStalledWriter();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * stops writing and discards queued input
+     */
+    public void close() {
+        closed = true;
+        queue.clear();
+        queuedBytes.set(0);
+    }
+
+    /**
+     * returns queue metrics for the host
+     *
+     * @return map of metrics
+     */
+    public Map<String, Object> getStats() {
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("queueSize", queue.size());
+        stats.put("queuedBytes", queuedBytes.get());
+        stats.put("droppedBytes", droppedBytes.get());
+        long started = writeStarted;
+        stats.put("writeBlockedMs", (started > 0) ? System.currentTimeMillis() - started : 0);
+        stats.put("stalled", stalled.get());
+        return stats;
+    }
+
+}
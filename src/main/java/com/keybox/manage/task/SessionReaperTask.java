@@ -0,0 +1,127 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.task;
+
+import com.jcraft.jsch.Channel;
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.action.SecureShellAction;
+import com.keybox.manage.model.SchSession;
+import com.keybox.manage.model.UserSchSessions;
+import com.keybox.manage.util.BroadcastUtil;
+import com.keybox.manage.util.SSHUtil;
+import com.keybox.manage.util.SessionOutputUtil;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Task to remove terminals whose ssh channel or session has died and terminals of users
+ * that no longer have a web socket open, so their reader threads and output buffers are reclaimed
+ */
+public class SessionReaperTask implements Runnable {
+
+    //seconds between scans
+    public static final long REAPER_INTERVAL = Long.parseLong(AppConfig.getProperty("reaperInterval", "60")) * 1000;
+    //minutes a user's terminals are kept without an open web socket
+    public static final long ORPHAN_TIMEOUT = Long.parseLong(AppConfig.getProperty("orphanTimeout", "10")) * 60000;
+
+    private static AtomicLong reapedChannels = new AtomicLong(0);
+    private static AtomicLong reapedUsers = new AtomicLong(0);
+    private static AtomicLong lastRun = new AtomicLong(0);
+
+    //time each user was first seen without a web socket, only used by the reaper thread
+    private Map<Long, Long> orphanedSince = new HashMap<>();
+
+
+    public void run() {
+
+        try {
+            long now = System.currentTimeMillis();
+            Map<Long, UserSchSessions> userSchSessionMap = SecureShellAction.getUserSchSessionMap();
+
+            for (Long userId : userSchSessionMap.keySet()) {
+                UserSchSessions userSchSessions = userSchSessionMap.get(userId);
+                if (userSchSessions == null) {
+                    continue;
+                }
+
+                //remove terminals where the host closed the channel or the keepalive dropped the session
+                Iterator<Map.Entry<Integer, SchSession>> it = userSchSessions.getSchSessionMap().entrySet().iterator();
+                while (it.hasNext()) {
+                    Map.Entry<Integer, SchSession> entry = it.next();
+                    //frees the input thread of a host that has stopped accepting input
+                    if (entry.getValue().getInputTask() != null) {
+                        entry.getValue().getInputTask().isStalled(now);
+                    }
+                    if (isDead(entry.getValue())) {
+                        it.remove();
+                        BroadcastUtil.invalidateGroups(userId, entry.getKey());
+                        //the reader removes the output and releases the id last once the channel has closed
+                        SSHUtil.disconnect(entry.getValue());
+                        reapedChannels.incrementAndGet();
+                    }
+                }
+
+                //remove all terminals of users that have not had a web socket open for the timeout
+                if (SessionOutputUtil.isWebSocketOpen(userId)) {
+                    orphanedSince.remove(userId);
+                } else if (!orphanedSince.containsKey(userId)) {
+                    orphanedSince.put(userId, now);
+                } else if (now - orphanedSince.get(userId) > ORPHAN_TIMEOUT) {
+                    orphanedSince.remove(userId);
+                    reapedChannels.addAndGet(SSHUtil.disconnectUser(userId, userSchSessionMap));
+                    reapedUsers.incrementAndGet();
+                }
+            }
+
+            //forget users that were removed by a web socket close or logout
+            orphanedSince.keySet().retainAll(userSchSessionMap.keySet());
+            lastRun.set(now);
+
+        } catch (Exception ex) {
+            //keep the scheduled task running
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * @param schSession terminal session
+     * @return true if the channel or session is no longer connected
+     */
+    private static boolean isDead(SchSession schSession) {
+
+        Channel channel = schSession.getChannel();
+        return channel == null || channel.isClosed() || schSession.getSession() == null || !schSession.getSession().isConnected();
+    }
+
+    /**
+     * returns reclaim counts
+     *
+     * @return map of metrics
+     */
+    public static Map<String, Object> getStats() {
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("reapedChannels", reapedChannels.get());
+        stats.put("reapedUsers", reapedUsers.get());
+        stats.put("lastRun", lastRun.get());
+        return stats;
+    }
+
+}
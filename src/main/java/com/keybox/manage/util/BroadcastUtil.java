@@ -0,0 +1,120 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.keybox.manage.action.SecureShellAction;
+import com.keybox.manage.model.BroadcastGroup;
+import com.keybox.manage.model.SchSession;
+import com.keybox.manage.model.UserSchSessions;
+import com.keybox.manage.task.SessionInputTask;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Utility to register the terminals selected for input as a broadcast group
+ */
+public class BroadcastUtil {
+
+
+    /**
+     * registers a group for the selected terminals of the user
+     *
+     * @param userId      user id
+     * @param instanceIds selected instance ids
+     * @return group id or null if the user has no open terminals
+     */
+    public static Integer createGroup(Long userId, List<Integer> instanceIds) {
+
+        UserSchSessions userSchSessions = SecureShellAction.getUserSchSessionMap().get(userId);
+        if (userSchSessions == null) {
+            return null;
+        }
+
+        List<Integer> idList = new ArrayList<>();
+        List<SessionInputTask> inputTaskList = new ArrayList<>();
+        List<Charset> charsetList = new ArrayList<>();
+        if (instanceIds != null) {
+            for (Integer instanceId : instanceIds) {
+                SchSession schSession = userSchSessions.getSchSessionMap().get(instanceId);
+                if (schSession != null && schSession.getInputTask() != null) {
+                    idList.add(instanceId);
+                    inputTaskList.add(schSession.getInputTask());
+                    charsetList.add(schSession.getCharset());
+                }
+            }
+        }
+
+        BroadcastGroup group = new BroadcastGroup();
+        group.setId(userSchSessions.getLastGroupId().incrementAndGet());
+        int[] ids = new int[idList.size()];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = idList.get(i);
+        }
+        group.setInstanceIds(ids);
+        group.setInputTasks(inputTaskList.toArray(new SessionInputTask[inputTaskList.size()]));
+        group.setCharsets(charsetList.toArray(new Charset[charsetList.size()]));
+
+        //only the latest selection is used by the terminal page
+        for (BroadcastGroup previous : userSchSessions.getBroadcastGroupMap().values()) {
+            previous.setValid(false);
+        }
+        userSchSessions.getBroadcastGroupMap().clear();
+        userSchSessions.getBroadcastGroupMap().put(group.getId(), group);
+
+        return group.getId();
+    }
+
+    /**
+     * returns a group if it is still valid
+     *
+     * @param userSchSessions terminals for user
+     * @param groupId         group id
+     * @return group or null if it was invalidated
+     */
+    public static BroadcastGroup getGroup(UserSchSessions userSchSessions, Integer groupId) {
+
+        BroadcastGroup group = userSchSessions.getBroadcastGroupMap().get(groupId);
+        if (group != null && group.isValid()) {
+            return group;
+        }
+        return null;
+    }
+
+    /**
+     * invalidates groups holding a terminal that was disconnected
+     *
+     * @param userId     user id
+     * @param instanceId instance id of the disconnected terminal
+     */
+    public static void invalidateGroups(Long userId, Integer instanceId) {
+
+        UserSchSessions userSchSessions = SecureShellAction.getUserSchSessionMap().get(userId);
+        if (userSchSessions != null) {
+            for (BroadcastGroup group : userSchSessions.getBroadcastGroupMap().values()) {
+                for (int id : group.getInstanceIds()) {
+                    if (id == instanceId) {
+                        group.setValid(false);
+                        userSchSessions.getBroadcastGroupMap().remove(group.getId());
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+}
@@ -0,0 +1,251 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.jcraft.jsch.HostKey;
+import com.jcraft.jsch.HostKeyRepository;
+import com.jcraft.jsch.SocketFactory;
+import com.jcraft.jsch.UserInfo;
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.model.ConnectTiming;
+import com.keybox.manage.model.HostSystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Utility to time the phases of a ssh connect and keep percentiles of recent connects by gear and by domain
+ * for each user, and for all connects
+ */
+public class ConnectTimingUtil {
+
+    //number of recent connects kept for each gear and domain
+    public static final int TIMING_SAMPLES = Integer.parseInt(AppConfig.getProperty("connectTimingSamples", "100"));
+
+    private static final String[] PHASES = {"dns", "tcp", "kex", "auth", "channel", "total"};
+    private static final double[] PERCENTILES = {50, 90, 99};
+
+    //samples keyed by user id and gear or domain
+    private static ConcurrentHashMap<String, TimingSamples> gearMap = new ConcurrentHashMap<>();
+    private static ConcurrentHashMap<String, TimingSamples> domainMap = new ConcurrentHashMap<>();
+    private static TimingSamples allSamples = new TimingSamples();
+
+
+    /**
+     * adds the timing of a successful connect to the gear and domain percentiles of the user
+     *
+     * @param userId     user id
+     * @param hostSystem connected host system
+     */
+    public static void record(Long userId, HostSystem hostSystem) {
+
+        ConnectTiming timing = hostSystem.getConnectTiming();
+        if (timing == null) {
+            return;
+        }
+        Long[] values = {timing.getDnsTm(), timing.getTcpTm(), timing.getKexTm(), timing.getAuthTm(), timing.getChannelTm(), timing.getTotalTm()};
+
+        allSamples.add(values);
+        getSamples(gearMap, userId + ":" + hostSystem.getUser() + "@" + hostSystem.getHost()).add(values);
+        if (hostSystem.getDomain() != null) {
+            getSamples(domainMap, userId + ":" + hostSystem.getDomain()).add(values);
+        }
+    }
+
+    private static TimingSamples getSamples(ConcurrentHashMap<String, TimingSamples> map, String key) {
+
+        TimingSamples samples = map.get(key);
+        if (samples == null) {
+            samples = new TimingSamples();
+            TimingSamples existing = map.putIfAbsent(key, samples);
+            if (existing != null) {
+                samples = existing;
+            }
+        }
+        return samples;
+    }
+
+    /**
+     * returns phase percentiles of all connects, and by gear and by domain for the connects of a user
+     *
+     * @param userId user id
+     * @return map of percentiles
+     */
+    public static Map<String, Object> getStats(Long userId) {
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("all", allSamples.getPercentiles());
+        stats.put("byGear", getStats(gearMap, userId + ":"));
+        stats.put("byDomain", getStats(domainMap, userId + ":"));
+        return stats;
+    }
+
+    private static Map<String, Object> getStats(Map<String, TimingSamples> map, String prefix) {
+
+        Map<String, Object> stats = new TreeMap<>();
+        for (Map.Entry<String, TimingSamples> entry : map.entrySet()) {
+            if (entry.getKey().startsWith(prefix)) {
+                stats.put(entry.getKey().substring(prefix.length()), entry.getValue().getPercentiles());
+            }
+        }
+        return stats;
+    }
+
+
+    /**
+     * recent samples of each phase, phases not timed for a connect are not added
+     */
+    private static class TimingSamples {
+
+        private final long[][] samples = new long[PHASES.length][TIMING_SAMPLES];
+        private final int[] counts = new int[PHASES.length];
+
+        synchronized void add(Long[] values) {
+            for (int i = 0; i < PHASES.length; i++) {
+                if (values[i] != null) {
+                    samples[i][counts[i] % TIMING_SAMPLES] = values[i];
+                    counts[i]++;
+                }
+            }
+        }
+
+        synchronized Map<String, Object> getPercentiles() {
+
+            Map<String, Object> phaseMap = new LinkedHashMap<>();
+            for (int i = 0; i < PHASES.length; i++) {
+                int n = Math.min(counts[i], TIMING_SAMPLES);
+                if (n == 0) {
+                    continue;
+                }
+                long[] sorted = Arrays.copyOf(samples[i], n);
+                Arrays.sort(sorted);
+
+                Map<String, Object> phaseStats = new LinkedHashMap<>();
+                phaseStats.put("count", counts[i]);
+                for (double percentile : PERCENTILES) {
+                    int index = (int) Math.ceil(percentile / 100 * n) - 1;
+                    phaseStats.put("p" + (int) percentile, sorted[Math.max(0, index)]);
+                }
+                phaseStats.put("max", sorted[n - 1]);
+                phaseMap.put(PHASES[i], phaseStats);
+            }
+            return phaseMap;
+        }
+    }
+
+    /**
+     * opens the socket for a session and records the tcp connect time
+     */
+    public static class TimedSocketFactory implements SocketFactory {
+
+        private final ConnectTiming timing;
+        private final int timeout;
+
+        public TimedSocketFactory(ConnectTiming timing, int timeout) {
+            this.timing = timing;
+            this.timeout = timeout;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            long start = System.currentTimeMillis();
+            Socket socket = new Socket();
+            try {
+                socket.connect(new InetSocketAddress(host, port), timeout);
+            } catch (IOException ex) {
+                socket.close();
+                throw ex;
+            }
+            timing.setTcpTm(System.currentTimeMillis() - start);
+            return socket;
+        }
+
+        @Override
+        public InputStream getInputStream(Socket socket) throws IOException {
+            return socket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream(Socket socket) throws IOException {
+            return socket.getOutputStream();
+        }
+    }
+
+    /**
+     * records when the host key is checked, which happens once key exchange has completed
+     */
+    public static class TimedHostKeyRepository implements HostKeyRepository {
+
+        private final HostKeyRepository repository;
+        private volatile long kexDone = 0;
+
+        public TimedHostKeyRepository(HostKeyRepository repository) {
+            this.repository = repository;
+        }
+
+        /**
+         * @return time the host key was checked or 0 if key exchange did not complete
+         */
+        public long getKexDone() {
+            return kexDone;
+        }
+
+        @Override
+        public int check(String host, byte[] key) {
+            kexDone = System.currentTimeMillis();
+            return repository.check(host, key);
+        }
+
+        @Override
+        public void add(HostKey hostkey, UserInfo ui) {
+            repository.add(hostkey, ui);
+        }
+
+        @Override
+        public void remove(String host, String type) {
+            repository.remove(host, type);
+        }
+
+        @Override
+        public void remove(String host, String type, byte[] key) {
+            repository.remove(host, type, key);
+        }
+
+        @Override
+        public String getKnownHostsRepositoryID() {
+            return repository.getKnownHostsRepositoryID();
+        }
+
+        @Override
+        public HostKey[] getHostKey() {
+            return repository.getHostKey();
+        }
+
+        @Override
+        public HostKey[] getHostKey(String host, String type) {
+            return repository.getHostKey(host, type);
+        }
+    }
+
+}
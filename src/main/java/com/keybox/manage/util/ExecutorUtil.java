@@ -0,0 +1,413 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.model.HostSystem;
+
+import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Shared thread pools for ssh connect, ssh reader and web socket output tasks
+ */
+public class ExecutorUtil {
+
+    //max number of ssh channels that can be read at once
+    public static final int SSH_READER_THREADS = Integer.parseInt(AppConfig.getProperty("sshReaderThreads", "128"));
+    //max number of hosts connected to at once for all users, further connects are queued
+    public static final int CONNECT_THREADS = Integer.parseInt(AppConfig.getProperty("connectThreads", "10"));
+    //max number of hosts a user connects to at once so one user can not fill the connect queue
+    public static final int USER_CONNECT_THREADS = Integer.parseInt(AppConfig.getProperty("userConnectThreads", "4"));
+    //number of threads opening warm sessions, kept apart so they never delay connects a user is waiting on
+    public static final int WARM_CONNECT_THREADS = Integer.parseInt(AppConfig.getProperty("warmConnectThreads", "2"));
+    //max number of dns lookups at once, a lookup that has timed out keeps its thread until it returns
+    public static final int DNS_THREADS = CONNECT_THREADS + WARM_CONNECT_THREADS;
+    //number of threads used to push output to web sockets
+    public static final int OUTPUT_THREADS = Integer.parseInt(AppConfig.getProperty("outputThreads", "4"));
+    //number of threads used to write input to ssh sessions, a host whose write has timed out gets a spare thread
+    public static final int INPUT_THREADS = Integer.parseInt(AppConfig.getProperty("inputThreads", "16"));
+
+    private static final long SHUTDOWN_TIMEOUT = 10;
+
+    private static AtomicLong connectRejected = new AtomicLong(0);
+    private static AtomicLong warmConnectRejected = new AtomicLong(0);
+    private static AtomicLong dnsRejected = new AtomicLong(0);
+    private static AtomicLong sshReaderRejected = new AtomicLong(0);
+    private static AtomicLong outputRejected = new AtomicLong(0);
+    private static AtomicLong inputRejected = new AtomicLong(0);
+    private static AtomicLong maintenanceRejected = new AtomicLong(0);
+    private static AtomicLong recordingRejected = new AtomicLong(0);
+    //input writes blocked past the timeout, guarded by the input executor
+    private static int stalledWriters = 0;
+    //running and waiting connects of each user, guarded by the map
+    private static final Map<Long, UserConnects> userConnectMap = new HashMap<>();
+
+    private static ThreadPoolExecutor connectExecutor = new ThreadPoolExecutor(CONNECT_THREADS, CONNECT_THREADS, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("keybox-ssh-connect"), new CountingRejectHandler(connectRejected, "Connect executor is shut down"));
+
+    private static ThreadPoolExecutor warmConnectExecutor = new ThreadPoolExecutor(WARM_CONNECT_THREADS, WARM_CONNECT_THREADS, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("keybox-ssh-warm"), new CountingRejectHandler(warmConnectRejected, "Warm connect executor is shut down"));
+
+    private static ThreadPoolExecutor dnsExecutor = new ThreadPoolExecutor(0, DNS_THREADS, 60L, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new NamedThreadFactory("keybox-dns"), new CountingRejectHandler(dnsRejected, "DNS lookup limit of " + DNS_THREADS + " reached"));
+
+    //each reader blocks on its channel so readers are not queued, they are rejected once the limit is reached
+    private static ThreadPoolExecutor sshReaderExecutor = new ThreadPoolExecutor(0, SSH_READER_THREADS, 60L, TimeUnit.SECONDS,
+            new SynchronousQueue<Runnable>(), new NamedThreadFactory("keybox-ssh-reader"), new CountingRejectHandler(sshReaderRejected, "SSH reader limit of " + SSH_READER_THREADS + " reached"));
+
+    private static ScheduledThreadPoolExecutor outputExecutor = new ScheduledThreadPoolExecutor(OUTPUT_THREADS,
+            new NamedThreadFactory("keybox-ws-output"), new CountingRejectHandler(outputRejected, "Output executor is shut down"));
+
+    private static ThreadPoolExecutor inputExecutor = new ThreadPoolExecutor(INPUT_THREADS, INPUT_THREADS, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("keybox-ssh-input"), new CountingRejectHandler(inputRejected, "Input executor is shut down"));
+
+    //timers for expiring idle sessions
+    private static ScheduledThreadPoolExecutor maintenanceExecutor = new ScheduledThreadPoolExecutor(1,
+            new NamedThreadFactory("keybox-maintenance"), new CountingRejectHandler(maintenanceRejected, "Maintenance executor is shut down"));
+
+    //writes session recordings so disk io is kept off the reader and input threads
+    private static ScheduledThreadPoolExecutor recordingExecutor = new ScheduledThreadPoolExecutor(1,
+            new NamedThreadFactory("keybox-recording"), new CountingRejectHandler(recordingRejected, "Recording executor is shut down"));
+
+
+    static {
+        connectExecutor.allowCoreThreadTimeOut(true);
+        warmConnectExecutor.allowCoreThreadTimeOut(true);
+        inputExecutor.allowCoreThreadTimeOut(true);
+    }
+
+
+    /**
+     * submits task to connect to a host system, it waits for one of the user's running connects
+     * to finish if the user is at the per user limit
+     *
+     * @param userId user id
+     * @param task   connect task
+     * @return future for the connected host system
+     */
+    public static Future<HostSystem> submitConnect(final Long userId, Callable<HostSystem> task) {
+
+        final FutureTask<HostSystem> future = new FutureTask<>(task);
+        Runnable runnable = new Runnable() {
+            public void run() {
+                try {
+                    //does nothing if the connect was cancelled while waiting
+                    future.run();
+                } finally {
+                    connectDone(userId);
+                }
+            }
+        };
+        synchronized (userConnectMap) {
+            UserConnects userConnects = userConnectMap.get(userId);
+            if (userConnects == null) {
+                userConnects = new UserConnects();
+                userConnectMap.put(userId, userConnects);
+            }
+            if (userConnects.running >= USER_CONNECT_THREADS) {
+                userConnects.waiting.add(runnable);
+                return future;
+            }
+            userConnects.running++;
+            try {
+                connectExecutor.execute(runnable);
+            } catch (RejectedExecutionException ex) {
+                if (--userConnects.running == 0 && userConnects.waiting.isEmpty()) {
+                    userConnectMap.remove(userId);
+                }
+                throw ex;
+            }
+        }
+        return future;
+    }
+
+    /**
+     * starts the next waiting connect of a user once one has finished
+     *
+     * @param userId user id
+     */
+    private static void connectDone(Long userId) {
+
+        synchronized (userConnectMap) {
+            UserConnects userConnects = userConnectMap.get(userId);
+            if (userConnects == null) {
+                return;
+            }
+            Runnable next = userConnects.waiting.poll();
+            if (next != null) {
+                try {
+                    connectExecutor.execute(next);
+                    return;
+                } catch (RejectedExecutionException ex) {
+                    //shutting down, the waiting connects are dropped
+                    userConnects.waiting.clear();
+                }
+            }
+            if (--userConnects.running == 0) {
+                userConnectMap.remove(userId);
+            }
+        }
+    }
+
+    /**
+     * submits task to open a warm session on the warm connect pool
+     *
+     * @param task warm connect task
+     */
+    public static void executeWarmConnect(Runnable task) {
+        warmConnectExecutor.execute(task);
+    }
+
+    /**
+     * resolves a host name, giving up after the timeout
+     *
+     * @param host    host name
+     * @param timeout timeout in ms
+     * @return resolved address
+     * @throws Exception if the host can not be resolved in time
+     */
+    public static InetAddress resolve(final String host, long timeout) throws Exception {
+
+        Future<InetAddress> future = dnsExecutor.submit(new Callable<InetAddress>() {
+            @Override
+            public InetAddress call() throws Exception {
+                return InetAddress.getByName(host);
+            }
+        });
+        try {
+            return future.get(timeout, TimeUnit.MILLISECONDS);
+        } catch (ExecutionException ex) {
+            throw (ex.getCause() instanceof Exception) ? (Exception) ex.getCause() : ex;
+        } finally {
+            future.cancel(true);
+        }
+    }
+
+    /**
+     * starts task to read output from a ssh channel
+     *
+     * @param task ssh reader task
+     * @throws RejectedExecutionException if all reader threads are in use
+     */
+    public static void executeSSHReader(Runnable task) {
+        sshReaderExecutor.execute(task);
+    }
+
+    /**
+     * runs task to send output to a web socket
+     *
+     * @param task output task
+     */
+    public static void executeOutput(Runnable task) {
+        outputExecutor.execute(task);
+    }
+
+    /**
+     * runs task to send output to a web socket after a delay
+     *
+     * @param task  output task
+     * @param delay delay in ms
+     */
+    public static void scheduleOutput(Runnable task, long delay) {
+        outputExecutor.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * runs a maintenance task after a delay
+     *
+     * @param task  maintenance task
+     * @param delay delay in ms
+     */
+    public static void scheduleMaintenance(Runnable task, long delay) {
+        maintenanceExecutor.schedule(task, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * runs a maintenance task repeatedly
+     *
+     * @param task   maintenance task
+     * @param period time between runs in ms
+     */
+    public static void scheduleMaintenanceAtFixedRate(Runnable task, long period) {
+        maintenanceExecutor.scheduleAtFixedRate(task, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * runs a recording task repeatedly
+     *
+     * @param task   recording task
+     * @param period time between runs in ms
+     */
+    public static void scheduleRecordingAtFixedRate(Runnable task, long period) {
+        recordingExecutor.scheduleAtFixedRate(task, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * runs task to write input to a ssh session
+     *
+     * @param task input task
+     */
+    public static void executeInput(Runnable task) {
+        inputExecutor.execute(task);
+    }
+
+    /**
+     * adds a spare input thread for a write that is blocked past the timeout so other hosts are not held up
+     */
+    public static void addStalledWriter() {
+        synchronized (inputExecutor) {
+            stalledWriters++;
+            inputExecutor.setMaximumPoolSize(INPUT_THREADS + stalledWriters);
+            inputExecutor.setCorePoolSize(INPUT_THREADS + stalledWriters);
+        }
+    }
+
+    /**
+     * removes the spare input thread once a stalled write has returned
+     */
+    public static void removeStalledWriter() {
+        synchronized (inputExecutor) {
+            stalledWriters--;
+            inputExecutor.setCorePoolSize(INPUT_THREADS + stalledWriters);
+            inputExecutor.setMaximumPoolSize(INPUT_THREADS + stalledWriters);
+        }
+    }
+
+    /**
+     * returns pool and queue metrics
+     *
+     * @return map of metrics by pool
+     */
+    public static Map<String, Object> getStats() {
+
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("connect", getStats(connectExecutor, connectRejected));
+        stats.put("warmConnect", getStats(warmConnectExecutor, warmConnectRejected));
+        stats.put("dns", getStats(dnsExecutor, dnsRejected));
+        stats.put("sshReader", getStats(sshReaderExecutor, sshReaderRejected));
+        stats.put("output", getStats(outputExecutor, outputRejected));
+        stats.put("input", getStats(inputExecutor, inputRejected));
+        stats.put("maintenance", getStats(maintenanceExecutor, maintenanceRejected));
+        stats.put("recording", getStats(recordingExecutor, recordingRejected));
+        return stats;
+    }
+
+    /**
+     * returns metrics for a pool
+     *
+     * @param executor executor
+     * @param rejected rejected task count
+     * @return map of metrics
+     */
+    private static Map<String, Object> getStats(ThreadPoolExecutor executor, AtomicLong rejected) {
+
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("poolSize", executor.getPoolSize());
+        stats.put("maxPoolSize", executor.getMaximumPoolSize());
+        stats.put("largestPoolSize", executor.getLargestPoolSize());
+        stats.put("activeCount", executor.getActiveCount());
+        stats.put("queueSize", executor.getQueue().size());
+        stats.put("completedTaskCount", executor.getCompletedTaskCount());
+        stats.put("rejectedCount", rejected.get());
+        return stats;
+    }
+
+    /**
+     * stops accepting tasks and waits for running tasks to finish
+     */
+    public static void shutdown() {
+
+        connectExecutor.shutdownNow();
+        warmConnectExecutor.shutdownNow();
+        dnsExecutor.shutdownNow();
+        inputExecutor.shutdownNow();
+        maintenanceExecutor.shutdownNow();
+        recordingExecutor.shutdownNow();
+        outputExecutor.shutdown();
+        sshReaderExecutor.shutdown();
+        try {
+            if (!outputExecutor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                outputExecutor.shutdownNow();
+            }
+            if (!sshReaderExecutor.awaitTermination(SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+                sshReaderExecutor.shutdownNow();
+            }
+        } catch (InterruptedException ex) {
+            outputExecutor.shutdownNow();
+            sshReaderExecutor.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+
+    /**
+     * number of connects running for a user and the connects waiting for them to finish
+     */
+    private static class UserConnects {
+
+        int running = 0;
+        final Queue<Runnable> waiting = new LinkedList<>();
+    }
+
+    /**
+     * creates named daemon threads
+     */
+    private static class NamedThreadFactory implements ThreadFactory {
+
+        private final String prefix;
+        private final AtomicInteger count = new AtomicInteger(1);
+
+        NamedThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, prefix + "-" + count.getAndIncrement());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+    /**
+     * counts rejected tasks and throws exception back to caller
+     */
+    private static class CountingRejectHandler implements RejectedExecutionHandler {
+
+        private final AtomicLong rejected;
+        private final String message;
+
+        CountingRejectHandler(AtomicLong rejected, String message) {
+            this.rejected = rejected;
+            this.message = message;
+        }
+
+        @Override
+        public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException(message);
+        }
+    }
+
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.jcraft.jsch.Identity;
+import com.jcraft.jsch.JSch;
+import com.jcraft.jsch.JSchException;
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.db.PrivateKeyDB;
+import com.keybox.manage.model.ApplicationKey;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Holds the decrypted and parsed application key of each user so connecting to many systems
+ * reads and parses the key once. Entries expire and are wiped when the user logs out.
+ * Expired and replaced identities are wiped by a sweep once connects that may still be using them have timed out
+ */
+public class IdentityCacheUtil {
+
+    //minutes a parsed identity is kept, 0 to disable the cache
+    public static final long IDENTITY_CACHE_TTL = Long.parseLong(AppConfig.getProperty("identityCacheTTL", "15")) * 60000;
+
+    //time in ms between sweeps of expired identities
+    public static final long SWEEP_INTERVAL = 60000;
+
+    private static ConcurrentHashMap<Long, CachedIdentity> identityMap = new ConcurrentHashMap<>();
+    private static ConcurrentHashMap<Long, Object> lockMap = new ConcurrentHashMap<>();
+    //identities no longer handed out that are wiped after the connect timeout
+    private static Queue<CachedIdentity> retiredQueue = new ConcurrentLinkedQueue<>();
+
+
+    /**
+     * returns the parsed application key for the user, loading and decrypting it if it is not cached
+     *
+     * @param userId     user id
+     * @param passphrase key passphrase, the stored passphrase is used if empty
+     * @return decrypted identity
+     */
+    public static Identity getIdentity(Long userId, String passphrase) throws JSchException {
+
+        CachedIdentity cached = identityMap.get(userId);
+        if (cached != null && cached.expires > System.currentTimeMillis()) {
+            return cached.identity;
+        }
+
+        //serialize loads for a user so a batch connect parses the key once
+        synchronized (getLock(userId)) {
+            cached = identityMap.get(userId);
+            if (cached != null && cached.expires > System.currentTimeMillis()) {
+                return cached.identity;
+            }
+            Identity identity = loadIdentity(userId, passphrase);
+            //a key that could not be decrypted is not kept so the passphrase can be entered again
+            if (IDENTITY_CACHE_TTL > 0 && !identity.isEncrypted()) {
+                cached = identityMap.put(userId, new CachedIdentity(identity, System.currentTimeMillis() + IDENTITY_CACHE_TTL));
+                if (cached != null) {
+                    retire(cached);
+                }
+            }
+            return identity;
+        }
+    }
+
+    /**
+     * reads and decrypts the application key and parses it with the passphrase
+     *
+     * @param userId     user id
+     * @param passphrase key passphrase, the stored passphrase is used if empty
+     * @return decrypted identity
+     */
+    private static Identity loadIdentity(Long userId, String passphrase) throws JSchException {
+
+        ApplicationKey appKey = PrivateKeyDB.getApplicationKey(userId);
+        //check to see if passphrase has been provided
+        if (passphrase == null || passphrase.trim().equals("")) {
+            passphrase = appKey.getPassphrase();
+            //check for null inorder to use key without passphrase
+            if (passphrase == null) {
+                passphrase = "";
+            }
+        }
+
+        //parse the key with its own instance and keep the identity it creates
+        JSch jsch = new JSch();
+        jsch.addIdentity(appKey.getId().toString(), appKey.getPrivateKey().trim().getBytes(), appKey.getPublicKey().getBytes(), passphrase.getBytes());
+        return (Identity) jsch.getIdentityRepository().getIdentities().firstElement();
+    }
+
+    /**
+     * removes and wipes the cached identity for a user
+     *
+     * @param userId user id
+     */
+    public static void clear(Long userId) {
+
+        if (userId != null) {
+            CachedIdentity cached = identityMap.remove(userId);
+            lockMap.remove(userId);
+            if (cached != null) {
+                cached.identity.clear();
+            }
+        }
+    }
+
+    /**
+     * removes and wipes all cached identities
+     */
+    public static void clearAll() {
+
+        for (Long userId : identityMap.keySet()) {
+            clear(userId);
+        }
+        CachedIdentity retired;
+        while ((retired = retiredQueue.poll()) != null) {
+            retired.identity.clear();
+        }
+    }
+
+    /**
+     * evicts expired identities and wipes retired ones that connects can no longer be using
+     */
+    public static void sweep() {
+
+        long now = System.currentTimeMillis();
+        for (Iterator<Map.Entry<Long, CachedIdentity>> it = identityMap.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, CachedIdentity> entry = it.next();
+            if (entry.getValue().expires <= now && identityMap.remove(entry.getKey(), entry.getValue())) {
+                lockMap.remove(entry.getKey());
+                retire(entry.getValue());
+            }
+        }
+        //locks of users without a cached identity
+        for (Long userId : lockMap.keySet()) {
+            if (!identityMap.containsKey(userId)) {
+                lockMap.remove(userId);
+            }
+        }
+
+        //a connect started with an identity before it expired may use it until the connect timeout
+        for (Iterator<CachedIdentity> it = retiredQueue.iterator(); it.hasNext(); ) {
+            CachedIdentity retired = it.next();
+            if (retired.retired + SSHUtil.SESSION_TIMEOUT <= now) {
+                it.remove();
+                retired.identity.clear();
+            }
+        }
+    }
+
+    /**
+     * queues an identity that is no longer handed out to be wiped
+     *
+     * @param cached expired or replaced identity
+     */
+    private static void retire(CachedIdentity cached) {
+        cached.retired = System.currentTimeMillis();
+        retiredQueue.add(cached);
+    }
+
+    private static Object getLock(Long userId) {
+
+        Object lock = lockMap.get(userId);
+        if (lock == null) {
+            Object newLock = new Object();
+            lock = lockMap.putIfAbsent(userId, newLock);
+            if (lock == null) {
+                lock = newLock;
+            }
+        }
+        return lock;
+    }
+
+    /**
+     * parsed identity and the time it expires
+     */
+    private static class CachedIdentity {
+
+        final Identity identity;
+        final long expires;
+        volatile long retired;
+
+        CachedIdentity(Identity identity, long expires) {
+            this.identity = identity;
+            this.expires = expires;
+        }
+    }
+
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import java.util.BitSet;
+
+/**
+ * Hands out terminal instance ids for a user. The lowest free id is always claimed so ids
+ * are reused in order after a terminal is disconnected
+ */
+public class InstanceIdAllocator {
+
+    //bit is set for each id in use, id 0 is never used
+    private final BitSet used = new BitSet();
+
+
+    /**
+     * claims the lowest free id
+     *
+     * @return instance id
+     */
+    public synchronized int allocate() {
+        int id = used.nextClearBit(1);
+        used.set(id);
+        return id;
+    }
+
+    /**
+     * frees an id so it can be claimed again
+     *
+     * @param id instance id
+     */
+    public synchronized void release(int id) {
+        if (id > 0) {
+            used.clear(id);
+        }
+    }
+
+    /**
+     * @return number of ids in use
+     */
+    public synchronized int size() {
+        return used.cardinality();
+    }
+}
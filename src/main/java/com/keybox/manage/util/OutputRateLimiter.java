@@ -0,0 +1,257 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Caps the output sent for a terminal to a rate in chars per second.
+ * <p>
+ * Output within the rate is sent as it is drained. Once a drain is over the allowance the terminal is
+ * suppressing, only the last screenful of the output is kept and it is sent once per coalesce interval after
+ * a marker with the number of chars skipped. Suppressing stops when the output of an interval fits the rate
+ */
+public class OutputRateLimiter {
+
+    //max chars kept for the last screenful
+    private static final int MAX_SCREENFUL = 16384;
+    //chars searched back from a cut for the start of an escape sequence
+    private static final int MAX_SEQUENCE = 256;
+    private static final char ESC = 27;
+    private static final char BEL = 7;
+
+    private static AtomicLong totalSuppressedChars = new AtomicLong(0);
+    private static AtomicLong totalSuppressions = new AtomicLong(0);
+
+    private volatile int rate;
+    private final long coalesceInterval;
+
+    private double allowance;
+    private long lastTm;
+    private boolean suppressing = false;
+    private long nextEmitTm = 0;
+    //chars received and the last screenful held since the last emit
+    private long received = 0;
+    private String held = null;
+
+
+    /**
+     * @param rate             max chars per second, 0 or less for no limit
+     * @param coalesceInterval time in ms between updates sent while suppressing
+     */
+    public OutputRateLimiter(int rate, long coalesceInterval) {
+        this.rate = rate;
+        this.coalesceInterval = coalesceInterval;
+        this.allowance = rate;
+        this.lastTm = System.currentTimeMillis();
+    }
+
+    /**
+     * returns the output to send now
+     *
+     * @param output drained output, may be null
+     * @param lines  number of lines in a screenful
+     * @param now    current time in ms
+     * @return output to send or null if it is held
+     */
+    public synchronized String limit(String output, int lines, long now) {
+
+        if (rate <= 0) {
+            //limit was removed while suppressing
+            if (held != null) {
+                output = (output != null) ? held + output : held;
+            }
+            suppressing = false;
+            received = 0;
+            held = null;
+            return output;
+        }
+        int length = output != null ? output.length() : 0;
+
+        //up to a second of output can be sent in a burst
+        allowance = Math.min(rate, allowance + (now - lastTm) * rate / 1000.0);
+        lastTm = now;
+
+        if (suppressing && received == 0 && now >= nextEmitTm) {
+            suppressing = false;
+        }
+        if (!suppressing) {
+            if (length <= allowance) {
+                allowance = allowance - length;
+                return output;
+            }
+            suppressing = true;
+            totalSuppressions.incrementAndGet();
+            nextEmitTm = now + coalesceInterval;
+        }
+
+        //output while suppressing uses up the allowance
+        allowance = Math.max(0, allowance - length);
+        if (length > 0) {
+            received = received + length;
+            held = lastScreenful(held != null ? held + output : output, lines);
+        }
+        if (now < nextEmitTm) {
+            return null;
+        }
+
+        String emit = null;
+        if (held != null) {
+            long skipped = received - held.length();
+            emit = held;
+            if (skipped > 0) {
+                totalSuppressedChars.addAndGet(skipped);
+                emit = "\r\n[" + skipped + " characters suppressed]\r\n" + held;
+            }
+        }
+        //keep suppressing while the output of the interval is over the rate
+        if (received <= rate * coalesceInterval / 1000) {
+            suppressing = false;
+        } else {
+            nextEmitTm = now + coalesceInterval;
+        }
+        received = 0;
+        held = null;
+        return emit;
+    }
+
+    /**
+     * returns the time until held output is to be sent
+     *
+     * @param now current time in ms
+     * @return delay in ms or -1 if no output is held
+     */
+    public synchronized long getHeldDelay(long now) {
+        return held != null ? Math.max(0, nextEmitTm - now) : -1;
+    }
+
+    /**
+     * @return true while output over the rate is being suppressed
+     */
+    public synchronized boolean isSuppressing() {
+        return suppressing;
+    }
+
+    /**
+     * @param rate max chars per second, 0 or less for no limit
+     */
+    public void setRate(int rate) {
+        this.rate = rate;
+    }
+
+    public int getRate() {
+        return rate;
+    }
+
+    /**
+     * returns the start of the output from the beginning of the last lines
+     *
+     * @param output output
+     * @param lines  number of lines to keep
+     * @return last lines
+     */
+    private static String lastScreenful(String output, int lines) {
+
+        int min = Math.max(0, output.length() - MAX_SCREENFUL);
+        int count = 0;
+        //a trailing line break does not start another line
+        int i = output.endsWith("\n") ? output.length() - 2 : output.length() - 1;
+        for (; i >= min; i--) {
+            if (output.charAt(i) == '\n' && ++count == lines) {
+                break;
+            }
+        }
+        if (i >= min || min == 0) {
+            return output.substring(Math.max(min, i + 1));
+        }
+        return output.substring(safeCut(output, min));
+    }
+
+    /**
+     * moves a cut in the output forward so it does not split an escape sequence or a surrogate pair
+     *
+     * @param output output
+     * @param cut    index the output is cut at
+     * @return index at or after the cut
+     */
+    private static int safeCut(String output, int cut) {
+
+        //start at a line if there is one in the rest of the output
+        int line = output.indexOf('\n', cut);
+        if (line >= 0 && line < output.length() - 1) {
+            return line + 1;
+        }
+
+        for (int i = cut - 1; i >= Math.max(0, cut - MAX_SEQUENCE); i--) {
+            if (output.charAt(i) == ESC) {
+                cut = Math.max(cut, sequenceEnd(output, i));
+                break;
+            }
+        }
+        if (cut < output.length() && Character.isLowSurrogate(output.charAt(cut))) {
+            cut++;
+        }
+        return cut;
+    }
+
+    /**
+     * returns the index after the escape sequence that starts at the index
+     *
+     * @param output output
+     * @param start  index of the escape
+     * @return index after the sequence or the length of the output if it is not terminated
+     */
+    private static int sequenceEnd(String output, int start) {
+
+        int length = output.length();
+        if (start + 1 >= length) {
+            return length;
+        }
+        char type = output.charAt(start + 1);
+        if (type == '[') {
+            //csi ends with a final char from @ to ~
+            for (int i = start + 2; i < length; i++) {
+                char c = output.charAt(i);
+                if (c >= '@' && c <= '~') {
+                    return i + 1;
+                }
+            }
+            return length;
+        } else if (type == ']' || type == 'P' || type == '_' || type == '^') {
+            //strings end with bel or esc \
+            for (int i = start + 2; i < length; i++) {
+                char c = output.charAt(i);
+                if (c == BEL) {
+                    return i + 1;
+                } else if (c == ESC && i + 1 < length && output.charAt(i + 1) == '\\') {
+                    return i + 2;
+                }
+            }
+            return length;
+        } else if (type == '(' || type == ')' || type == '#' || type == '%') {
+            return Math.min(length, start + 3);
+        }
+        return start + 2;
+    }
+
+    public static long getTotalSuppressedChars() {
+        return totalSuppressedChars.get();
+    }
+
+    public static long getTotalSuppressions() {
+        return totalSuppressions.get();
+    }
+}
@@ -0,0 +1,227 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded buffer for terminal output written by the ssh reader and drained by the web socket output task.
+ * <p>
+ * Positions are the total number of chars written (tail) and consumed (head) so the index into the
+ * array is the position masked by the capacity. When the buffer is full the reader either blocks until
+ * output is drained or moves the head forward before writing, dropping the oldest output. Drain detects
+ * output that was overwritten while it was being copied by the failed compare and set on the head.
+ */
+public class OutputRingBuffer {
+
+    public static final String DROP_POLICY = "drop";
+    public static final String BLOCK_POLICY = "block";
+
+    private static final long BLOCK_WAIT = TimeUnit.MILLISECONDS.toNanos(1);
+
+    //dropped chars for all buffers
+    private static AtomicLong totalDropped = new AtomicLong(0);
+
+    private final char[] buffer;
+    private final int capacity;
+    private final int mask;
+    private final boolean block;
+
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+    private final AtomicLong dropped = new AtomicLong(0);
+    private volatile boolean closed = false;
+
+    //reused by drain, guarded by the buffer
+    private final StringBuilder drainBuilder = new StringBuilder();
+    //position the consumer has read up to, used to report dropped output, guarded by the buffer
+    private long consumed = 0;
+
+
+    /**
+     * @param size   min number of chars to hold, rounded up to a power of two
+     * @param policy DROP_POLICY or BLOCK_POLICY
+     */
+    public OutputRingBuffer(int size, String policy) {
+        int cap = 1;
+        while (cap < size) {
+            cap = cap << 1;
+        }
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.buffer = new char[cap];
+        this.block = BLOCK_POLICY.equals(policy);
+    }
+
+    /**
+     * adds output to the buffer. Called by the ssh reader only
+     *
+     * @param value  Array that is the source of characters
+     * @param offset The initial offset
+     * @param count  The length
+     */
+    public void write(char[] value, int offset, int count) {
+        if (block) {
+            writeBlocking(value, offset, count);
+        } else {
+            writeDropOldest(value, offset, count);
+        }
+    }
+
+    /**
+     * waits for space so no output is lost, applies back-pressure to the ssh channel
+     */
+    private void writeBlocking(char[] value, int offset, int count) {
+
+        while (count > 0 && !closed) {
+            long t = tail.get();
+            int free = capacity - (int) (t - head.get());
+            if (free <= 0) {
+                LockSupport.parkNanos(BLOCK_WAIT);
+            } else {
+                int n = Math.min(free, count);
+                copyIn(t, value, offset, n);
+                tail.set(t + n);
+                offset = offset + n;
+                count = count - n;
+            }
+        }
+    }
+
+    /**
+     * moves the head past the oldest output if there is not enough space
+     */
+    private void writeDropOldest(char[] value, int offset, int count) {
+
+        long t = tail.get();
+        long end = t + count;
+
+        //only the last capacity chars can be kept
+        if (count > capacity) {
+            offset = offset + count - capacity;
+            count = capacity;
+        }
+
+        //claim space before writing so drain can detect what was overwritten
+        long minHead = end - capacity;
+        long h = head.get();
+        while (h < minHead) {
+            if (head.compareAndSet(h, minHead)) {
+                dropped.addAndGet(minHead - h);
+                totalDropped.addAndGet(minHead - h);
+                break;
+            }
+            h = head.get();
+        }
+
+        copyIn(end - count, value, offset, count);
+        tail.set(end);
+    }
+
+    private void copyIn(long position, char[] value, int offset, int count) {
+
+        int index = (int) (position & mask);
+        int first = Math.min(count, capacity - index);
+        System.arraycopy(value, offset, buffer, index, first);
+        if (first < count) {
+            System.arraycopy(value, offset + first, buffer, 0, count - first);
+        }
+    }
+
+    /**
+     * returns output written since the last drain. A marker is added if output was dropped.
+     * Drains are serialized since the output tasks of an old and a new web socket can both drain during a resume,
+     * the writer does not take the lock
+     *
+     * @return output or null if there is none
+     */
+    public synchronized String drain() {
+
+        while (true) {
+            long h = head.get();
+            long t = tail.get();
+            if (t <= h) {
+                return null;
+            }
+            long start = Math.max(h, t - capacity);
+            drainBuilder.setLength(0);
+            copyOut(start, t);
+
+            //head moves when the reader overwrites output, skip anything that may have changed during the copy
+            while (!head.compareAndSet(h, t)) {
+                h = head.get();
+                if (h >= t) {
+                    break;
+                }
+                if (h > start) {
+                    drainBuilder.delete(0, (int) (h - start));
+                    start = h;
+                }
+            }
+            if (h < t) {
+                long lost = start - consumed;
+                consumed = t;
+                if (lost > 0) {
+                    drainBuilder.insert(0, "\r\n[" + lost + " characters of output dropped]\r\n");
+                }
+                return drainBuilder.toString();
+            }
+        }
+    }
+
+    private void copyOut(long start, long end) {
+
+        int index = (int) (start & mask);
+        int count = (int) (end - start);
+        int first = Math.min(count, capacity - index);
+        drainBuilder.append(buffer, index, first);
+        if (first < count) {
+            drainBuilder.append(buffer, 0, count - first);
+        }
+    }
+
+    /**
+     * releases a reader blocked on a full buffer
+     */
+    public void close() {
+        closed = true;
+    }
+
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * @return number of chars waiting to be drained
+     */
+    public int size() {
+        return (int) Math.max(0, Math.min(capacity, tail.get() - head.get()));
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public long getDropped() {
+        return dropped.get();
+    }
+
+    public static long getTotalDropped() {
+        return totalDropped.get();
+    }
+}
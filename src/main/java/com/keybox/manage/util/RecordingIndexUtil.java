@@ -0,0 +1,518 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.keybox.common.util.AppConfig;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Inverted index of the terms in each recording so recordings can be searched without reading them.
+ * <p>
+ * An index file is written next to a recording once it is closed. It holds the offset and time of each
+ * block and, for each term in the output and input with escape sequences removed, the blocks it appears in.
+ * Recordings without an index, ie from before a restart, are indexed when they are first searched
+ */
+public class RecordingIndexUtil {
+
+    public static final String INDEX_EXT = ".idx";
+    //max matches returned by a search
+    public static final int SEARCH_MAX_RESULTS = Integer.parseInt(AppConfig.getProperty("recordingSearchMaxResults", "50"));
+
+    private static final int INDEX_MAGIC = 0x4b424958;
+    private static final int INDEX_VERSION = 1;
+    private static final int INDEX_CACHE_SIZE = 256;
+    private static final int MAX_TOKEN_LENGTH = 64;
+    private static final int SNIPPET_SIZE = 60;
+
+    private static final Pattern ESCAPE_PATTERN = Pattern.compile("\u001B\\[[0-9;?]*[ -/]*[@-~]|\u001B\\][^\u0007\u001B]*(\u0007|\u001B\\\\)|\u001B[()][0-9A-Za-z]|\u001B[=>78DEHM]");
+
+    private static AtomicLong indexedRecordings = new AtomicLong(0);
+    private static AtomicLong indexedBytes = new AtomicLong(0);
+    private static AtomicLong indexNanos = new AtomicLong(0);
+    private static AtomicLong queries = new AtomicLong(0);
+    private static AtomicLong queryNanos = new AtomicLong(0);
+    private static AtomicLong maxQueryNanos = new AtomicLong(0);
+
+    //recently searched indexes by index file path
+    private static final Map<String, RecordingIndex> indexCache = new LinkedHashMap<String, RecordingIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, RecordingIndex> eldest) {
+            return size() > INDEX_CACHE_SIZE;
+        }
+    };
+
+
+    /**
+     * builds and writes the index of a closed recording
+     *
+     * @param file recording file
+     */
+    public static void indexRecording(File file) {
+
+        try {
+            writeIndex(buildIndex(file), new File(file.getPath() + INDEX_EXT));
+        } catch (IOException | DataFormatException | RuntimeException ex) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * deletes the index of a recording that has been deleted
+     *
+     * @param file recording file
+     */
+    public static void removeIndex(File file) {
+
+        File indexFile = new File(file.getPath() + INDEX_EXT);
+        synchronized (indexCache) {
+            indexCache.remove(indexFile.getPath());
+        }
+        if (indexFile.exists()) {
+            indexFile.delete();
+        }
+    }
+
+    /**
+     * reads the blocks of a recording and collects the blocks each term is in
+     *
+     * @param file recording file
+     * @return index
+     */
+    private static RecordingIndex buildIndex(File file) throws IOException, DataFormatException {
+
+        long start = System.nanoTime();
+        long bytes = 0;
+
+        RecordingIndex index = new RecordingIndex();
+        List<Long> offsets = new ArrayList<>();
+        List<Double> times = new ArrayList<>();
+        Map<String, List<Integer>> postings = new HashMap<>();
+
+        Inflater inflater = new Inflater();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            JsonParser parser = new JsonParser();
+            long offset = 0;
+            byte[] raw;
+            while ((raw = RecordingUtil.readBlock(raf, offset, inflater)) != null) {
+                int block = offsets.size();
+                offsets.add(offset);
+                bytes = bytes + raw.length;
+
+                Double firstTime = null;
+                StringBuilder output = new StringBuilder();
+                StringBuilder input = new StringBuilder();
+                for (String line : new String(raw, StandardCharsets.UTF_8).split("\n")) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    JsonElement element = parser.parse(line);
+                    if (element.isJsonArray()) {
+                        JsonArray frame = element.getAsJsonArray();
+                        if (firstTime == null) {
+                            firstTime = frame.get(0).getAsDouble();
+                        }
+                        //input is typed a key at a time so it is joined before it is tokenized
+                        if (SessionRecorder.INPUT.equals(frame.get(1).getAsString())) {
+                            input.append(frame.get(2).getAsString());
+                        } else {
+                            output.append(frame.get(2).getAsString());
+                        }
+                    } else if (element.getAsJsonObject().has("title") && !element.getAsJsonObject().get("title").isJsonNull()) {
+                        index.title = element.getAsJsonObject().get("title").getAsString();
+                    }
+                }
+                times.add(firstTime != null ? firstTime : 0);
+
+                Set<String> terms = tokenize(output.toString());
+                terms.addAll(tokenize(input.toString()));
+                for (String term : terms) {
+                    List<Integer> blocks = postings.get(term);
+                    if (blocks == null) {
+                        blocks = new ArrayList<>();
+                        postings.put(term, blocks);
+                    }
+                    blocks.add(block);
+                }
+                offset = raf.getFilePointer();
+            }
+        } finally {
+            inflater.end();
+        }
+
+        index.blockOffsets = new long[offsets.size()];
+        index.blockTimes = new double[times.size()];
+        for (int i = 0; i < offsets.size(); i++) {
+            index.blockOffsets[i] = offsets.get(i);
+            index.blockTimes[i] = times.get(i);
+        }
+        index.postings = new HashMap<>();
+        for (Map.Entry<String, List<Integer>> entry : postings.entrySet()) {
+            int[] blocks = new int[entry.getValue().size()];
+            for (int i = 0; i < blocks.length; i++) {
+                blocks[i] = entry.getValue().get(i);
+            }
+            index.postings.put(entry.getKey(), blocks);
+        }
+
+        indexedRecordings.incrementAndGet();
+        indexedBytes.addAndGet(bytes);
+        indexNanos.addAndGet(System.nanoTime() - start);
+        return index;
+    }
+
+    /**
+     * writes the index to a temp file and renames it so a partial index is never read
+     */
+    private static void writeIndex(RecordingIndex index, File indexFile) throws IOException {
+
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(INDEX_MAGIC);
+            out.writeInt(INDEX_VERSION);
+            out.writeUTF(index.title != null ? index.title : "");
+            out.writeInt(index.blockOffsets.length);
+            for (int i = 0; i < index.blockOffsets.length; i++) {
+                out.writeLong(index.blockOffsets[i]);
+                out.writeDouble(index.blockTimes[i]);
+            }
+            out.writeInt(index.postings.size());
+            for (Map.Entry<String, int[]> entry : index.postings.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                for (int block : entry.getValue()) {
+                    out.writeInt(block);
+                }
+            }
+        }
+        if (!tmp.renameTo(indexFile)) {
+            indexFile.delete();
+            if (!tmp.renameTo(indexFile)) {
+                throw new IOException("Could not write " + indexFile.getPath());
+            }
+        }
+    }
+
+    private static RecordingIndex readIndex(File indexFile) throws IOException {
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (in.readInt() != INDEX_MAGIC || in.readInt() != INDEX_VERSION) {
+                return null;
+            }
+            RecordingIndex index = new RecordingIndex();
+            index.title = in.readUTF();
+            int blockCount = in.readInt();
+            index.blockOffsets = new long[blockCount];
+            index.blockTimes = new double[blockCount];
+            for (int i = 0; i < blockCount; i++) {
+                index.blockOffsets[i] = in.readLong();
+                index.blockTimes[i] = in.readDouble();
+            }
+            int termCount = in.readInt();
+            index.postings = new HashMap<>(termCount * 2);
+            for (int i = 0; i < termCount; i++) {
+                String term = in.readUTF();
+                int[] blocks = new int[in.readInt()];
+                for (int j = 0; j < blocks.length; j++) {
+                    blocks[j] = in.readInt();
+                }
+                index.postings.put(term, blocks);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * returns the index of a recording, an index is built for a closed recording that does not have one
+     *
+     * @param file recording file
+     * @return index or null if the recording is still being written
+     */
+    private static RecordingIndex getIndex(File file) throws IOException, DataFormatException {
+
+        File indexFile = new File(file.getPath() + INDEX_EXT);
+        synchronized (indexCache) {
+            RecordingIndex index = indexCache.get(indexFile.getPath());
+            if (index != null) {
+                return index;
+            }
+        }
+
+        RecordingIndex index = null;
+        if (indexFile.isFile()) {
+            index = readIndex(indexFile);
+        }
+        if (index == null) {
+            if (RecordingUtil.isRecording(file)) {
+                return null;
+            }
+            index = buildIndex(file);
+            writeIndex(index, indexFile);
+        }
+        synchronized (indexCache) {
+            indexCache.put(indexFile.getPath(), index);
+        }
+        return index;
+    }
+
+    /**
+     * removes escape sequences from terminal output
+     *
+     * @param text output
+     * @return text
+     */
+    public static String stripEscapes(String text) {
+        return ESCAPE_PATTERN.matcher(text).replaceAll("");
+    }
+
+    /**
+     * splits text into lower case terms of letters, digits and the chars common in commands and paths
+     *
+     * @param text output or input
+     * @return terms
+     */
+    public static Set<String> tokenize(String text) {
+
+        Set<String> terms = new HashSet<>();
+        String stripped = stripEscapes(text);
+        int start = -1;
+        for (int i = 0; i <= stripped.length(); i++) {
+            char c = (i < stripped.length()) ? stripped.charAt(i) : ' ';
+            boolean termChar = Character.isLetterOrDigit(c) || c == '_' || c == '-' || c == '.' || c == '/';
+            if (termChar && start < 0) {
+                start = i;
+            } else if (!termChar && start >= 0) {
+                if (i - start <= MAX_TOKEN_LENGTH) {
+                    terms.add(stripped.substring(start, i).toLowerCase(Locale.US));
+                }
+                start = -1;
+            }
+        }
+        return terms;
+    }
+
+    /**
+     * returns the blocks of the recordings of a user that hold all terms of the query
+     *
+     * @param userId       user id
+     * @param query        text to find
+     * @param hostSystemId only search recordings of the system, null for all
+     * @param fromTm       only matches at or after the time in ms, null for any
+     * @param toTm         only matches before the time in ms, null for any
+     * @return matches, newest recording first
+     */
+    public static List<Map<String, Object>> search(Long userId, String query, Long hostSystemId, Long fromTm, Long toTm) {
+
+        long start = System.nanoTime();
+        List<Map<String, Object>> resultList = new ArrayList<>();
+
+        Set<String> terms = (query != null) ? tokenize(query) : new HashSet<String>();
+        File[] files = new File(RecordingUtil.RECORDING_DIR, userId.toString()).listFiles();
+        if (terms.isEmpty() || files == null) {
+            return resultList;
+        }
+        Arrays.sort(files, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return b.getName().compareTo(a.getName());
+            }
+        });
+
+        Inflater inflater = new Inflater();
+        try {
+            for (File file : files) {
+                if (resultList.size() >= SEARCH_MAX_RESULTS) {
+                    break;
+                }
+                String name = file.getName();
+                if (!RecordingUtil.NAME_PATTERN.matcher(name).matches()) {
+                    continue;
+                }
+                //system and start time are in the name so recordings are skipped without reading the index
+                String[] parts = name.substring(0, name.length() - RecordingUtil.RECORDING_EXT.length()).split("-");
+                if (parts.length != 3) {
+                    continue;
+                }
+                long startTm;
+                try {
+                    startTm = new SimpleDateFormat("yyyyMMddHHmmssSSS").parse(parts[0]).getTime();
+                } catch (ParseException ex) {
+                    continue;
+                }
+                if ((hostSystemId != null && !hostSystemId.toString().equals(parts[2]))
+                        || (toTm != null && startTm >= toTm)
+                        || (fromTm != null && file.lastModified() < fromTm)) {
+                    continue;
+                }
+
+                try {
+                    RecordingIndex index = getIndex(file);
+                    if (index == null) {
+                        continue;
+                    }
+                    for (int block : index.find(terms)) {
+                        long blockTm = startTm + (long) (index.blockTimes[block] * 1000);
+                        if ((fromTm != null && blockTm < fromTm) || (toTm != null && blockTm >= toTm)) {
+                            continue;
+                        }
+                        Map<String, Object> result = new LinkedHashMap<>();
+                        result.put("userId", userId);
+                        result.put("hostSystemId", Long.parseLong(parts[2]));
+                        result.put("instanceId", Integer.parseInt(parts[1]));
+                        result.put("title", index.title);
+                        result.put("recordingName", name);
+                        result.put("offset", index.blockOffsets[block]);
+                        result.put("time", blockTm);
+                        result.put("snippet", getSnippet(file, index.blockOffsets[block], query, terms, inflater));
+                        resultList.add(result);
+                        if (resultList.size() >= SEARCH_MAX_RESULTS) {
+                            break;
+                        }
+                    }
+                } catch (IOException | DataFormatException | RuntimeException ex) {
+                    ex.printStackTrace();
+                }
+            }
+        } finally {
+            inflater.end();
+        }
+
+        long elapsed = System.nanoTime() - start;
+        queries.incrementAndGet();
+        queryNanos.addAndGet(elapsed);
+        long max = maxQueryNanos.get();
+        while (elapsed > max && !maxQueryNanos.compareAndSet(max, elapsed)) {
+            max = maxQueryNanos.get();
+        }
+        return resultList;
+    }
+
+    /**
+     * returns the text around the query, or the first term if the query is split across frames, in a block
+     */
+    private static String getSnippet(File file, long offset, String query, Set<String> terms, Inflater inflater) throws IOException, DataFormatException {
+
+        StringBuilder output = new StringBuilder();
+        StringBuilder input = new StringBuilder();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            byte[] raw = RecordingUtil.readBlock(raf, offset, inflater);
+            if (raw == null) {
+                return "";
+            }
+            JsonParser parser = new JsonParser();
+            for (String line : new String(raw, StandardCharsets.UTF_8).split("\n")) {
+                if (!line.isEmpty()) {
+                    JsonElement element = parser.parse(line);
+                    if (element.isJsonArray()) {
+                        JsonArray frame = element.getAsJsonArray();
+                        if (SessionRecorder.INPUT.equals(frame.get(1).getAsString())) {
+                            input.append(frame.get(2).getAsString());
+                        } else {
+                            output.append(frame.get(2).getAsString());
+                        }
+                    }
+                }
+            }
+        }
+
+        //output has the echoed command and its context, input is used if the command was not echoed
+        String find = query.trim().toLowerCase(Locale.US);
+        String term = terms.iterator().next();
+        for (String text : new String[]{stripEscapes(output.toString()), stripEscapes(input.toString())}) {
+            String lower = text.toLowerCase(Locale.US);
+            int pos = lower.indexOf(find);
+            if (pos < 0) {
+                pos = lower.indexOf(term);
+            }
+            if (pos >= 0) {
+                return text.substring(Math.max(0, pos - SNIPPET_SIZE), Math.min(text.length(), pos + find.length() + SNIPPET_SIZE))
+                        .replaceAll("[\\r\\n]+", " ");
+            }
+        }
+        return "";
+    }
+
+    /**
+     * returns indexing throughput and query latency
+     *
+     * @return map of metrics
+     */
+    public static Map<String, Object> getStats() {
+
+        long nanos = indexNanos.get();
+        long count = queries.get();
+        Map<String, Object> stats = new LinkedHashMap<>();
+        stats.put("indexedRecordings", indexedRecordings.get());
+        stats.put("indexedBytes", indexedBytes.get());
+        stats.put("indexMillis", nanos / 1000000.0);
+        stats.put("indexBytesPerSec", nanos > 0 ? indexedBytes.get() * 1000000000.0 / nanos : 0);
+        stats.put("queries", count);
+        stats.put("avgQueryMillis", count > 0 ? queryNanos.get() / count / 1000000.0 : 0);
+        stats.put("maxQueryMillis", maxQueryNanos.get() / 1000000.0);
+        return stats;
+    }
+
+    /**
+     * block offsets and times and the blocks each term is in
+     */
+    private static class RecordingIndex {
+
+        String title;
+        long[] blockOffsets;
+        double[] blockTimes;
+        Map<String, int[]> postings;
+
+        /**
+         * @param terms terms
+         * @return blocks holding all terms in order
+         */
+        List<Integer> find(Set<String> terms) {
+
+            List<Integer> blocks = null;
+            for (String term : terms) {
+                int[] termBlocks = postings.get(term);
+                if (termBlocks == null) {
+                    return new ArrayList<>();
+                }
+                List<Integer> matched = new ArrayList<>();
+                if (blocks == null) {
+                    for (int block : termBlocks) {
+                        matched.add(block);
+                    }
+                } else {
+                    for (Integer block : blocks) {
+                        if (Arrays.binarySearch(termBlocks, block) >= 0) {
+                            matched.add(block);
+                        }
+                    }
+                }
+                blocks = matched;
+            }
+            return blocks != null ? blocks : new ArrayList<Integer>();
+        }
+    }
+
+}
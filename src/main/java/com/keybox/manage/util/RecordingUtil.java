@@ -0,0 +1,336 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonParser;
+import com.keybox.common.util.AppConfig;
+import com.keybox.manage.model.HostSystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Pattern;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Utility to record terminal output and input to files under the data directory and read them back for replay
+ */
+public class RecordingUtil {
+
+    //record the output and input of every terminal
+    public static final boolean RECORDING_ENABLED = "true".equals(AppConfig.getProperty("sessionRecording", "true"));
+    //record input as well as output, input includes passwords typed at prompts
+    public static final boolean RECORDING_INPUT = "true".equals(AppConfig.getProperty("recordingInput", "true"));
+    //max bytes of recordings for all users, the oldest are deleted first, 0 for no limit
+    public static final long RECORDING_MAX_BYTES = Long.parseLong(AppConfig.getProperty("recordingMaxBytes", "104857600"));
+    //days recordings are kept, 0 to keep them until the size limit is reached
+    public static final long RECORDING_RETENTION = Long.parseLong(AppConfig.getProperty("recordingRetentionDays", "30")) * 86400000L;
+    //time in ms between checks of the retention and size limits
+    public static final long RECORDING_CLEANUP_INTERVAL = 60000;
+    public static final String RECORDING_DIR = AppConfig.getProperty("recordingDir",
+            new File(OpenShiftUtils.DATA_DIR != null ? OpenShiftUtils.DATA_DIR : System.getProperty("java.io.tmpdir"), "recordings").getPath());
+    //time in ms between writes of the queued frames
+    public static final long RECORDING_FLUSH_INTERVAL = Long.parseLong(AppConfig.getProperty("recordingFlushInterval", "1000"));
+    //max chars waiting to be written for a terminal before frames are dropped
+    public static final int RECORDING_QUEUE_LIMIT = Integer.parseInt(AppConfig.getProperty("recordingQueueLimit", "4194304"));
+    public static final int RECORDING_COMPRESS_LEVEL = Integer.parseInt(AppConfig.getProperty("recordingCompressLevel", "6"));
+    //chars of frames compressed as a block
+    public static final int RECORDING_BLOCK_SIZE = 65536;
+
+    public static final String RECORDING_EXT = ".cast.z";
+    public static final Pattern NAME_PATTERN = Pattern.compile("[\\w.-]+\\.cast\\.z");
+
+    //max uncompressed bytes returned by a read
+    private static final int MAX_READ_SIZE = 262144;
+    private static final int BLOCK_HEADER_SIZE = 8;
+
+    private static final Gson gson = new Gson();
+
+    private static Set<SessionRecorder> recorders = Collections.newSetFromMap(new ConcurrentHashMap<SessionRecorder, Boolean>());
+    //only used by the recording thread
+    private static long lastCleanupTm = 0;
+
+
+    /**
+     * starts recording a terminal
+     *
+     * @param userId     user id
+     * @param instanceId instance id
+     * @param hostSystem host system
+     * @return recorder or null if recording is disabled or the directory can not be created
+     */
+    public static SessionRecorder startRecording(Long userId, Integer instanceId, HostSystem hostSystem) {
+
+        if (!RECORDING_ENABLED) {
+            return null;
+        }
+        File dir = new File(RECORDING_DIR, userId.toString());
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            return null;
+        }
+
+        Date now = new Date();
+        String name = new SimpleDateFormat("yyyyMMddHHmmssSSS").format(now) + "-" + instanceId + "-" + hostSystem.getId() + RECORDING_EXT;
+
+        Map<String, Object> header = new LinkedHashMap<>();
+        header.put("version", 2);
+        header.put("width", 80);
+        header.put("height", 24);
+        header.put("timestamp", now.getTime() / 1000);
+        header.put("title", hostSystem.getDisplayLabel());
+
+        SessionRecorder recorder = new SessionRecorder(new File(dir, name), gson.toJson(header), SSHUtil.getCharset(hostSystem));
+        recorders.add(recorder);
+        return recorder;
+    }
+
+    /**
+     * writes queued frames of all recorders and removes recorders that are closed, and deletes recordings
+     * past the retention or size limit
+     */
+    public static void flushAll() {
+        flush(true);
+
+        long now = System.currentTimeMillis();
+        if (now - lastCleanupTm >= RECORDING_CLEANUP_INTERVAL) {
+            lastCleanupTm = now;
+            deleteExpired(now);
+        }
+    }
+
+    /**
+     * deletes closed recordings older than the retention period, then the oldest closed recordings
+     * until all recordings fit the size limit
+     *
+     * @param now current time in ms
+     */
+    private static void deleteExpired(long now) {
+
+        if (RECORDING_RETENTION <= 0 && RECORDING_MAX_BYTES <= 0) {
+            return;
+        }
+        File[] dirs = new File(RECORDING_DIR).listFiles();
+        if (dirs == null) {
+            return;
+        }
+        List<File> fileList = new ArrayList<>();
+        long total = 0;
+        for (File dir : dirs) {
+            File[] files = dir.listFiles();
+            if (files == null) {
+                continue;
+            }
+            for (File file : files) {
+                if (NAME_PATTERN.matcher(file.getName()).matches()) {
+                    fileList.add(file);
+                    total = total + file.length() + new File(file.getPath() + RecordingIndexUtil.INDEX_EXT).length();
+                }
+            }
+        }
+        //names start with the start time so the oldest sort first
+        Collections.sort(fileList, new Comparator<File>() {
+            public int compare(File a, File b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        for (File file : fileList) {
+            boolean expired = RECORDING_RETENTION > 0 && now - file.lastModified() > RECORDING_RETENTION;
+            boolean overLimit = RECORDING_MAX_BYTES > 0 && total > RECORDING_MAX_BYTES;
+            if (!expired && !overLimit) {
+                continue;
+            }
+            //recordings still being written are kept
+            if (isRecording(file)) {
+                continue;
+            }
+            long size = file.length() + new File(file.getPath() + RecordingIndexUtil.INDEX_EXT).length();
+            if (file.delete()) {
+                RecordingIndexUtil.removeIndex(file);
+                total = total - size;
+            }
+        }
+    }
+
+    /**
+     * writes queued frames and indexes the recordings that are closed
+     *
+     * @param index false to leave indexing of the closed recordings to the first search
+     */
+    private static synchronized void flush(boolean index) {
+
+        for (SessionRecorder recorder : recorders) {
+            if (!recorder.flush()) {
+                recorders.remove(recorder);
+                if (index) {
+                    RecordingIndexUtil.indexRecording(recorder.getFile());
+                }
+            }
+        }
+    }
+
+    /**
+     * closes all recorders and writes what they have queued
+     */
+    public static void closeAll() {
+
+        for (SessionRecorder recorder : recorders) {
+            recorder.close();
+        }
+        flush(false);
+    }
+
+    /**
+     * reads and inflates the block at an offset, the file pointer is left at the next block
+     *
+     * @param raf      recording file
+     * @param offset   file offset of the block
+     * @param inflater inflater to reuse
+     * @return frame lines or null if the block is not complete
+     */
+    public static byte[] readBlock(RandomAccessFile raf, long offset, Inflater inflater) throws IOException, DataFormatException {
+
+        long length = raf.length();
+        if (offset + BLOCK_HEADER_SIZE > length) {
+            return null;
+        }
+        raf.seek(offset);
+        int rawLength = raf.readInt();
+        int size = raf.readInt();
+        if (offset + BLOCK_HEADER_SIZE + size > length) {
+            return null;
+        }
+        byte[] compressed = new byte[size];
+        raf.readFully(compressed);
+        byte[] raw = new byte[rawLength];
+        inflater.reset();
+        inflater.setInput(compressed);
+        inflater.inflate(raw);
+        return raw;
+    }
+
+    /**
+     * @param file recording file
+     * @return true if the recording is still being written
+     */
+    public static boolean isRecording(File file) {
+
+        for (SessionRecorder recorder : recorders) {
+            if (recorder.getFile().equals(file)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * returns the recordings of a user, newest first
+     *
+     * @param userId user id
+     * @return list of name, size and last modified time
+     */
+    public static List<Map<String, Object>> getRecordings(Long userId) {
+
+        List<Map<String, Object>> recordingList = new ArrayList<>();
+        File[] files = new File(RECORDING_DIR, userId.toString()).listFiles();
+        if (files != null) {
+            Arrays.sort(files, new Comparator<File>() {
+                public int compare(File a, File b) {
+                    return b.getName().compareTo(a.getName());
+                }
+            });
+            for (File file : files) {
+                if (NAME_PATTERN.matcher(file.getName()).matches()) {
+                    Map<String, Object> recording = new LinkedHashMap<>();
+                    recording.put("name", file.getName());
+                    recording.put("size", file.length());
+                    recording.put("lastModified", file.lastModified());
+                    recordingList.add(recording);
+                }
+            }
+        }
+        return recordingList;
+    }
+
+    /**
+     * reads the frames of the blocks starting at an offset
+     *
+     * @param userId user id
+     * @param name   recording name
+     * @param offset file offset of the first block
+     * @return header, frames, offset of the next block and if the end was reached or null if the recording is not found
+     */
+    public static Map<String, Object> readRecording(Long userId, String name, long offset) {
+
+        if (name == null || !NAME_PATTERN.matcher(name).matches()) {
+            return null;
+        }
+        File file = new File(new File(RECORDING_DIR, userId.toString()), name);
+        if (!file.isFile()) {
+            return null;
+        }
+
+        JsonArray frames = new JsonArray();
+        JsonElement header = null;
+        long next = Math.max(offset, 0);
+        boolean eof = false;
+        Inflater inflater = new Inflater();
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            int read = 0;
+            JsonParser parser = new JsonParser();
+            while (read < MAX_READ_SIZE) {
+                byte[] raw = readBlock(raf, next, inflater);
+                //a block that is still being written is read by the next request
+                if (raw == null) {
+                    eof = true;
+                    break;
+                }
+                for (String line : new String(raw, StandardCharsets.UTF_8).split("\n")) {
+                    if (!line.isEmpty()) {
+                        JsonElement element = parser.parse(line);
+                        if (element.isJsonArray()) {
+                            frames.add(element);
+                        } else {
+                            header = element;
+                        }
+                    }
+                }
+                next = raf.getFilePointer();
+                read = read + raw.length;
+            }
+        } catch (IOException | DataFormatException ex) {
+            ex.printStackTrace();
+            eof = true;
+        } finally {
+            inflater.end();
+        }
+
+        Map<String, Object> page = new LinkedHashMap<>();
+        page.put("header", header);
+        page.put("frames", frames);
+        page.put("next", next);
+        page.put("eof", eof);
+        return page;
+    }
+
+}
@@ -17,16 +17,27 @@ package com.keybox.manage.util;
 
 import com.jcraft.jsch.*;
 import com.keybox.common.util.AppConfig;
-import com.keybox.manage.db.PrivateKeyDB;
+import com.keybox.manage.db.RecentSystemDB;
 import com.keybox.manage.db.SystemDB;
 import com.keybox.manage.db.SystemStatusDB;
 import com.keybox.manage.model.*;
 import com.keybox.manage.task.SecureShellTask;
+import com.keybox.manage.task.SessionInputTask;
 import org.apache.commons.io.FileUtils;
 
 import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * SSH utility class used to create public/private key for system and distribute authorized key files
@@ -42,8 +53,65 @@ public class SSHUtil {
     public static final String SSH_KEY = OpenShiftUtils.DATA_DIR + "id_" + KEY_TYPE;
 
 
-    public static final int SESSION_TIMEOUT = 60000;
-    public static final int CHANNEL_TIMEOUT = 60000;
+    //timeout for each host to connect and authenticate
+    public static final int SESSION_TIMEOUT = Integer.parseInt(AppConfig.getProperty("connectTimeout", "60")) * 1000;
+    public static final int CHANNEL_TIMEOUT = Integer.parseInt(AppConfig.getProperty("channelTimeout", "60")) * 1000;
+
+    //seconds between keepalive messages on idle sessions, 0 to disable
+    public static final int SERVER_ALIVE_INTERVAL = Integer.parseInt(AppConfig.getProperty("serverAliveInterval", "30")) * 1000;
+    //keepalives without a reply before the session is disconnected
+    public static final int SERVER_ALIVE_COUNT_MAX = Integer.parseInt(AppConfig.getProperty("serverAliveCountMax", "3"));
+
+    //algorithm profile applied to each connect
+    public static final String SSH_PROFILE = AppConfig.getProperty("sshProfile", "default");
+    //jsch config set for the profile
+    private static final Map<String, String> PROFILE_CONFIG = getProfileConfig(SSH_PROFILE);
+
+    //open additional terminals to a host as channels on one authenticated session
+    public static final boolean MULTIPLEX_SESSIONS = "true".equals(AppConfig.getProperty("multiplexSessions", "true"));
+    //max shell channels on a session, should not be over MaxSessions in sshd_config
+    public static final int MAX_CHANNELS_PER_SESSION = Integer.parseInt(AppConfig.getProperty("maxChannelsPerSession", "10"));
+
+    //open sessions after login to the systems the user most recently used
+    public static final boolean WARM_POOL = "true".equals(AppConfig.getProperty("warmPool", "false"));
+    //number of recent systems to open sessions to for each user
+    public static final int WARM_POOL_SIZE = Integer.parseInt(AppConfig.getProperty("warmPoolSize", "5"));
+    //max warm sessions for all users
+    public static final int WARM_POOL_MAX_SESSIONS = Integer.parseInt(AppConfig.getProperty("warmPoolMaxSessions", "50"));
+    //warm sessions not used within this time are closed
+    public static final long WARM_POOL_IDLE_TIMEOUT = Long.parseLong(AppConfig.getProperty("warmPoolIdleTimeout", "5")) * 60000;
+
+    //charset of terminal output and input, can be set for a host with hostCharset.<host>
+    //error for a connect that finished after the request stopped waiting for it
+    public static final String CONNECT_TIMED_OUT = "Connect timed out";
+
+    public static final String HOST_CHARSET = AppConfig.getProperty("hostCharset", "UTF-8");
+
+    //authenticated sessions by user id, user, host and port
+    private static final Map<String, SSHConnection> connectionMap = new HashMap<>();
+    //number of warm sessions, guarded by the connection map
+    private static int warmCount = 0;
+    private static AtomicLong warmOpened = new AtomicLong(0);
+    private static AtomicLong warmHits = new AtomicLong(0);
+    private static AtomicLong warmExpired = new AtomicLong(0);
+    private static AtomicLong warmFailed = new AtomicLong(0);
+
+    /**
+     * returns the charset set for the host or the default charset
+     *
+     * @param hostSystem host system
+     * @return charset, UTF-8 if the name set is not supported
+     */
+    public static Charset getCharset(HostSystem hostSystem) {
+
+        String name = AppConfig.getProperty("hostCharset." + hostSystem.getHost(), HOST_CHARSET);
+        try {
+            return Charset.forName(name);
+        } catch (IllegalArgumentException ex) {
+            ex.printStackTrace();
+        }
+        return StandardCharsets.UTF_8;
+    }
 
     /**
      * returns the system's public key
@@ -177,83 +245,110 @@ public class SSHUtil {
 
 
     /**
-     * return the next instance id based on ids defined in the session map
+     * open new ssh session on host system
      *
-     * @param userId        user id
+     * @param passphrase     key passphrase for instance
+     * @param password       password for instance
+     * @param userId         user id
+     * @param hostSystem     host system
      * @param userSessionMap user session map
-     * @return
+     * @return status of systems
      */
-    private static int getNextInstanceId(Long userId, Map<Long, UserSchSessions> userSessionMap ){
-
-        Integer instanceId=1;
-        if(userSessionMap.get(userId)!=null){
-
-            for(Integer id :userSessionMap.get(userId).getSchSessionMap().keySet()) {
-                if (!id.equals(instanceId) ) {
-
-                    if(userSessionMap.get(userId).getSchSessionMap().get(instanceId) == null) {
-                        return instanceId;
-                    }
-                }
-                instanceId = instanceId + 1;
-            }
-        }
-        return instanceId;
-
+    public static HostSystem openSSHTermOnSystem(String passphrase, String password, Long userId, HostSystem hostSystem, Map<Long, UserSchSessions> userSessionMap) {
+        return openSSHTermOnSystem(passphrase, password, userId, hostSystem, userSessionMap, null);
     }
 
-
     /**
-     * open new ssh session on host system
+     * open new ssh connection unless the caller has stopped waiting for it
      *
      * @param passphrase     key passphrase for instance
      * @param password       password for instance
      * @param userId         user id
      * @param hostSystem     host system
      * @param userSessionMap user session map
+     * @param settled        set by the connect before the terminal is added or by the caller once it stops waiting,
+     *                       the terminal is torn down if the caller set it first. Null if the caller always waits
      * @return status of systems
      */
-    public static HostSystem openSSHTermOnSystem(String passphrase, String password, Long userId, HostSystem hostSystem, Map<Long, UserSchSessions> userSessionMap) {
-
-        JSch jsch = new JSch();
+    public static HostSystem openSSHTermOnSystem(String passphrase, String password, Long userId, HostSystem hostSystem, Map<Long, UserSchSessions> userSessionMap, AtomicBoolean settled) {
 
-        int instanceId = getNextInstanceId(userId ,userSessionMap);
         hostSystem.setStatusCd(HostSystem.SUCCESS_STATUS);
-        hostSystem.setInstanceId(instanceId);
 
-        SchSession schSession = null;
+        SSHConnection connection = null;
+        Channel channel = null;
+
+        //phases are stored with the status so slow connects can be traced to dns, tcp, kex, auth or channel open
+        ConnectTiming timing = new ConnectTiming();
+        hostSystem.setConnectTiming(timing);
 
         try {
-            ApplicationKey appKey = PrivateKeyDB.getApplicationKey(userId);
-            //check to see if passphrase has been provided
-            if (passphrase == null || passphrase.trim().equals("")) {
-                passphrase = appKey.getPassphrase();
-                //check for null inorder to use key without passphrase
-                if (passphrase == null) {
-                    passphrase = "";
+            String key = getConnectionKey(userId, hostSystem);
+
+            //open the shell on an existing session to the host if there is one
+            connection = getCachedConnection(key);
+            boolean reused = connection != null;
+            timing.setReused(reused);
+
+            InputStream outFromChannel = null;
+            OutputStream inputToChannel = null;
+            while (channel == null) {
+                if (connection == null) {
+                    connection = connect(passphrase, password, userId, hostSystem, key, timing);
+                }
+                channel = openShell(connection.getSession());
+                outFromChannel = channel.getInputStream();
+                inputToChannel = channel.getOutputStream();
+                try {
+                    long channelStart = System.currentTimeMillis();
+                    channel.connect(CHANNEL_TIMEOUT);
+                    timing.setChannelTm(System.currentTimeMillis() - channelStart);
+                } catch (JSchException ex) {
+                    channel.disconnect();
+                    channel = null;
+                    if (!reused) {
+                        throw ex;
+                    }
+                    //session may have been closed by the host, start a new one
+                    removeCachedConnection(connection);
+                    releaseConnection(connection);
+                    connection = null;
+                    reused = false;
+                    timing.setReused(false);
                 }
             }
-            //add private key
-            jsch.addIdentity(appKey.getId().toString(), appKey.getPrivateKey().trim().getBytes(), appKey.getPublicKey().getBytes(), passphrase.getBytes());
+            PrintStream commander = new PrintStream(inputToChannel, true);
 
-            //create session
-            Session session = jsch.getSession(hostSystem.getUser(), hostSystem.getHost(), hostSystem.getPort());
+            SchSession schSession = new SchSession();
+            schSession.setUserId(userId);
+            schSession.setSession(connection.getSession());
+            schSession.setConnection(connection);
+            schSession.setChannel(channel);
+            schSession.setCommander(commander);
+            schSession.setInputTask(new SessionInputTask(commander));
+            schSession.setInputToChannel(inputToChannel);
+            schSession.setOutFromChannel(outFromChannel);
+            schSession.setHostSystem(hostSystem);
+            schSession.setCharset(getCharset(hostSystem));
 
-            //set password if it exists
-            if (password != null && !password.trim().equals("")) {
-                session.setPassword(password);
+            //a connect the caller stopped waiting for is torn down before it takes an instance id
+            if (settled != null && !settled.compareAndSet(false, true)) {
+                throw new JSchException(CONNECT_TIMED_OUT);
             }
-            session.setConfig("StrictHostKeyChecking", "no");
-            session.setConfig("PreferredAuthentications", "publickey,keyboard-interactive,password");
-            session.connect(SESSION_TIMEOUT);
-            Channel channel = session.openChannel("shell");
-            if ("true".equals(AppConfig.getProperty("agentForwarding"))) {
-                ((ChannelShell) channel).setAgentForwarding(true);
-            }
-            ((ChannelShell) channel).setPtyType("xterm");
 
-            InputStream outFromChannel = channel.getInputStream();
+            //get the server maps for user, created under lock so parallel connects share one
+            UserSchSessions userSchSessions;
+            synchronized (userSessionMap) {
+                userSchSessions = userSessionMap.get(userId);
+                //if no user session create a new one
+                if (userSchSessions == null) {
+                    userSchSessions = new UserSchSessions();
+                    userSessionMap.put(userId, userSchSessions);
+                }
+            }
 
+            //parallel connects get unique ids from the allocator
+            int instanceId = userSchSessions.getInstanceIdAllocator().allocate();
+            hostSystem.setInstanceId(instanceId);
 
             //new session output
             SessionOutput sessionOutput = new SessionOutput();
@@ -261,32 +356,38 @@ public class SSHUtil {
             sessionOutput.setInstanceId(instanceId);
             sessionOutput.setSessionId(userId);
 
+            //output and input are recorded once the terminal has an instance id
+            SessionRecorder recorder = RecordingUtil.startRecording(userId, instanceId, hostSystem);
+            if (RecordingUtil.RECORDING_INPUT) {
+                schSession.getInputTask().setRecorder(recorder);
+            }
 
-            Runnable run = new SecureShellTask(sessionOutput, outFromChannel);
-            Thread thread = new Thread(run);
-            thread.start();
-
-
-            OutputStream inputToChannel = channel.getOutputStream();
-            PrintStream commander = new PrintStream(inputToChannel, true);
-
-
-            channel.connect();
-
-            schSession = new SchSession();
-            schSession.setUserId(userId);
-            schSession.setSession(session);
-            schSession.setChannel(channel);
-            schSession.setCommander(commander);
-            schSession.setInputToChannel(inputToChannel);
-            schSession.setOutFromChannel(outFromChannel);
-            schSession.setHostSystem(hostSystem);
-
-
+            //add server information before the reader starts, a shell that exits at once has its reader remove it
+            userSchSessions.getSchSessionMap().put(instanceId, schSession);
+
+            try {
+                //throws exception if the reader limit has been reached
+                ExecutorUtil.executeSSHReader(new SecureShellTask(sessionOutput, schSession, userSchSessions, recorder));
+            } catch (RejectedExecutionException ex) {
+                userSchSessions.getSchSessionMap().remove(instanceId, schSession);
+                userSchSessions.getInstanceIdAllocator().release(instanceId);
+                if (recorder != null) {
+                    recorder.close();
+                }
+                throw ex;
+            }
 
         } catch (Exception e) {
+            if (channel != null) {
+                channel.disconnect();
+            }
+            if (connection != null) {
+                releaseConnection(connection);
+            }
             hostSystem.setErrorMsg(e.getMessage());
-            if (e.getMessage().toLowerCase().contains("userauth fail")) {
+            if (e.getMessage() == null) {
+                hostSystem.setStatusCd(HostSystem.GENERIC_FAIL_STATUS);
+            } else if (e.getMessage().toLowerCase().contains("userauth fail")) {
                 hostSystem.setStatusCd(HostSystem.PUBLIC_KEY_FAIL_STATUS);
             } else if (e.getMessage().toLowerCase().contains("auth fail") || e.getMessage().toLowerCase().contains("auth cancel")) {
                 hostSystem.setStatusCd(HostSystem.AUTH_FAIL_STATUS);
@@ -298,28 +399,518 @@ public class SSHUtil {
             }
         }
 
+        if (HostSystem.SUCCESS_STATUS.equals(hostSystem.getStatusCd())) {
+            ConnectTimingUtil.record(userId, hostSystem);
+        }
+
+        SystemStatusDB.updateSystemStatus(hostSystem, userId);
+
+        //recent systems are warmed on the next login
+        if (WARM_POOL && HostSystem.SUCCESS_STATUS.equals(hostSystem.getStatusCd())) {
+            RecentSystemDB.updateLastUsed(hostSystem, userId);
+        }
+
+        return hostSystem;
+    }
+
+    /**
+     * returns a cached session to the host with room for another channel and adds a reference to it
+     *
+     * @param key user id, user, host and port
+     * @return connection or null if there is not one
+     */
+    private static SSHConnection getCachedConnection(String key) {
+
+        if (!MULTIPLEX_SESSIONS) {
+            return null;
+        }
+        synchronized (connectionMap) {
+            SSHConnection connection = connectionMap.get(key);
+            if (connection != null && connection.getSession().isConnected() && connection.getRefCount() < MAX_CHANNELS_PER_SESSION) {
+                connection.setRefCount(connection.getRefCount() + 1);
+                if (connection.isWarm()) {
+                    connection.setWarm(false);
+                    warmCount--;
+                    warmHits.incrementAndGet();
+                }
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * removes a connection from the cache so it is not reused, channels already open keep their reference
+     *
+     * @param connection connection
+     */
+    private static void removeCachedConnection(SSHConnection connection) {
+
+        synchronized (connectionMap) {
+            if (connectionMap.get(connection.getKey()) == connection) {
+                connectionMap.remove(connection.getKey());
+            }
+        }
+    }
+
+    /**
+     * creates and authenticates a new ssh session to the host and caches it for other channels
+     *
+     * @param passphrase key passphrase for instance
+     * @param password   password for instance
+     * @param userId     user id
+     * @param hostSystem host system
+     * @param key        user id, user, host and port
+     * @param timing     connect timing
+     * @return connection with one reference
+     */
+    private static SSHConnection connect(String passphrase, String password, Long userId, HostSystem hostSystem, String key, ConnectTiming timing) throws JSchException {
 
-        //add session to map
-        if (hostSystem.getStatusCd().equals(HostSystem.SUCCESS_STATUS)) {
-            //get the server maps for user
-            UserSchSessions userSchSessions = userSessionMap.get(userId);
+        SSHConnection connection = new SSHConnection();
+        connection.setKey(key);
+        connection.setSession(createSession(passphrase, password, userId, hostSystem, timing));
+        connection.setRefCount(1);
 
-            //if no user session create a new one
-            if (userSchSessions == null) {
-                userSchSessions = new UserSchSessions();
+        if (MULTIPLEX_SESSIONS) {
+            synchronized (connectionMap) {
+                connectionMap.put(key, connection);
             }
-            Map<Integer , SchSession> schSessionMap = userSchSessions.getSchSessionMap();
+        }
+        return connection;
+    }
+
+    /**
+     * reads the cipher, key exchange, mac and compression settings of a profile into jsch config
+     *
+     * @param profile profile name
+     * @return map of jsch config names and values
+     */
+    private static Map<String, String> getProfileConfig(String profile) {
 
-            //add server information
-            schSessionMap.put(instanceId, schSession);
-            userSchSessions.setSchSessionMap(schSessionMap);
-            //add back to map
-            userSessionMap.put(userId, userSchSessions);
+        Map<String, String> config = new LinkedHashMap<>();
+        String prefix = "sshProfile." + profile + ".";
+
+        String cipher = AppConfig.getProperty(prefix + "cipher", null);
+        if (cipher != null) {
+            config.put("cipher.s2c", cipher);
+            config.put("cipher.c2s", cipher);
+            //ciphers the jvm does not support are dropped from the proposal
+            config.put("CheckCiphers", cipher);
+        }
+        String kex = AppConfig.getProperty(prefix + "kex", null);
+        if (kex != null) {
+            config.put("kex", kex);
+        }
+        String mac = AppConfig.getProperty(prefix + "mac", null);
+        if (mac != null) {
+            config.put("mac.s2c", mac);
+            config.put("mac.c2s", mac);
+        }
+        String compression = AppConfig.getProperty(prefix + "compression", null);
+        if (compression != null) {
+            config.put("compression.s2c", compression);
+            config.put("compression.c2s", compression);
         }
+        String compressionLevel = AppConfig.getProperty(prefix + "compressionLevel", null);
+        if (compressionLevel != null) {
+            config.put("compression_level", compressionLevel);
+        }
+        return config;
+    }
 
-        SystemStatusDB.updateSystemStatus(hostSystem, userId);
+    /**
+     * creates and authenticates a new ssh session to the host
+     *
+     * @param passphrase key passphrase for instance
+     * @param password   password for instance
+     * @param userId     user id
+     * @param hostSystem host system
+     * @param timing     records time spent in dns, tcp, kex and auth
+     * @return connected session
+     */
+    private static Session createSession(String passphrase, String password, Long userId, HostSystem hostSystem, ConnectTiming timing) throws JSchException {
 
-        return hostSystem;
+        JSch jsch = new JSch();
+
+        //add private key, parsed once per user
+        jsch.addIdentity(IdentityCacheUtil.getIdentity(userId, passphrase), null);
+
+        //create session
+        Session session = jsch.getSession(hostSystem.getUser(), hostSystem.getHost(), hostSystem.getPort());
+
+        //set password if it exists
+        if (password != null && !password.trim().equals("")) {
+            session.setPassword(password);
+        }
+        session.setConfig("StrictHostKeyChecking", "no");
+        session.setConfig("PreferredAuthentications", "publickey,keyboard-interactive,password");
+        //keepalives let jsch detect and drop a session to a host that has gone away
+        if (SERVER_ALIVE_INTERVAL > 0) {
+            session.setServerAliveInterval(SERVER_ALIVE_INTERVAL);
+            session.setServerAliveCountMax(SERVER_ALIVE_COUNT_MAX);
+        }
+        for (Map.Entry<String, String> entry : PROFILE_CONFIG.entrySet()) {
+            session.setConfig(entry.getKey(), entry.getValue());
+        }
+
+        //resolve the host on its own so dns is timed separately, the connect then uses the cached address.
+        //the lookup counts against the connect timeout
+        long start = System.currentTimeMillis();
+        try {
+            ExecutorUtil.resolve(hostSystem.getHost(), SESSION_TIMEOUT);
+        } catch (TimeoutException ex) {
+            throw new JSchException("timeout: dns lookup of " + hostSystem.getHost(), ex);
+        } catch (Exception ex) {
+            throw new JSchException(ex.toString(), ex);
+        }
+        timing.setDnsTm(System.currentTimeMillis() - start);
+        int timeout = (int) Math.max(1, SESSION_TIMEOUT - timing.getDnsTm());
+
+        ConnectTimingUtil.TimedHostKeyRepository hostKeyRepository = new ConnectTimingUtil.TimedHostKeyRepository(jsch.getHostKeyRepository());
+        session.setHostKeyRepository(hostKeyRepository);
+        session.setSocketFactory(new ConnectTimingUtil.TimedSocketFactory(timing, timeout));
+
+        long connectStart = System.currentTimeMillis();
+        try {
+            session.connect(timeout);
+        } finally {
+            //key exchange ends when the host key is checked, authentication takes the rest of the connect
+            long kexDone = hostKeyRepository.getKexDone();
+            if (kexDone > 0 && timing.getTcpTm() != null) {
+                timing.setKexTm(kexDone - connectStart - timing.getTcpTm());
+            }
+        }
+        timing.setAuthTm(System.currentTimeMillis() - hostKeyRepository.getKexDone());
+
+        return session;
+    }
+
+    /**
+     * opens sessions in the background to the systems the user most recently used so terminals
+     * opened after login only need a shell channel. Shells are not started on the warm sessions
+     *
+     * @param userId user id
+     */
+    public static void warmConnections(final Long userId) {
+
+        if (!WARM_POOL || !MULTIPLEX_SESSIONS || userId == null) {
+            return;
+        }
+        for (final HostSystem hostSystem : RecentSystemDB.getRecentSystems(userId, WARM_POOL_SIZE)) {
+            try {
+                ExecutorUtil.executeWarmConnect(new Runnable() {
+                    public void run() {
+                        warmConnection(userId, hostSystem);
+                    }
+                });
+            } catch (RejectedExecutionException ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * opens and caches a session without a reference, it is closed if it is not used before the idle timeout
+     *
+     * @param userId     user id
+     * @param hostSystem host system
+     */
+    private static void warmConnection(Long userId, HostSystem hostSystem) {
+
+        String key = getConnectionKey(userId, hostSystem);
+
+        //reserve a slot so the pool cap holds while sessions are connecting
+        synchronized (connectionMap) {
+            if (connectionMap.containsKey(key) || warmCount >= WARM_POOL_MAX_SESSIONS) {
+                return;
+            }
+            warmCount++;
+        }
+
+        Session session;
+        try {
+            session = createSession(null, null, userId, hostSystem, new ConnectTiming());
+        } catch (Exception ex) {
+            synchronized (connectionMap) {
+                warmCount--;
+            }
+            warmFailed.incrementAndGet();
+            return;
+        }
+
+        final SSHConnection connection = new SSHConnection();
+        connection.setKey(key);
+        connection.setSession(session);
+        connection.setWarm(true);
+
+        boolean cached = false;
+        synchronized (connectionMap) {
+            //a terminal may have connected to the host while the session was opening
+            if (!connectionMap.containsKey(key)) {
+                connectionMap.put(key, connection);
+                cached = true;
+            } else {
+                connection.setWarm(false);
+                warmCount--;
+            }
+        }
+        if (!cached) {
+            session.disconnect();
+            return;
+        }
+
+        warmOpened.incrementAndGet();
+        ExecutorUtil.scheduleMaintenance(new Runnable() {
+            @Override
+            public void run() {
+                expireWarmConnection(connection);
+            }
+        }, WARM_POOL_IDLE_TIMEOUT);
+    }
+
+    /**
+     * closes a warm session if it was never used
+     *
+     * @param connection warm connection
+     */
+    private static void expireWarmConnection(SSHConnection connection) {
+
+        if (closeWarmConnection(connection)) {
+            warmExpired.incrementAndGet();
+        }
+    }
+
+    /**
+     * closes a session if it is still warm
+     *
+     * @param connection connection
+     * @return true if the session was closed
+     */
+    private static boolean closeWarmConnection(SSHConnection connection) {
+
+        synchronized (connectionMap) {
+            if (!connection.isWarm()) {
+                return false;
+            }
+            connection.setWarm(false);
+            warmCount--;
+            if (connectionMap.get(connection.getKey()) == connection) {
+                connectionMap.remove(connection.getKey());
+            }
+        }
+        connection.getSession().disconnect();
+        return true;
+    }
+
+    /**
+     * closes the unused warm sessions of a user, called on logout
+     *
+     * @param userId user id
+     */
+    public static void closeWarmConnections(Long userId) {
+
+        if (userId == null) {
+            return;
+        }
+        List<SSHConnection> warmList = new ArrayList<>();
+        synchronized (connectionMap) {
+            for (SSHConnection connection : connectionMap.values()) {
+                if (connection.isWarm() && connection.getKey().startsWith(userId + ":")) {
+                    warmList.add(connection);
+                }
+            }
+        }
+        for (SSHConnection connection : warmList) {
+            closeWarmConnection(connection);
+        }
+    }
+
+    /**
+     * closes all cached and warm sessions, called when the application is undeployed
+     */
+    public static void closeAllConnections() {
+
+        List<SSHConnection> connectionList;
+        synchronized (connectionMap) {
+            connectionList = new ArrayList<>(connectionMap.values());
+            for (SSHConnection connection : connectionList) {
+                connection.setWarm(false);
+            }
+            connectionMap.clear();
+            warmCount = 0;
+        }
+        for (SSHConnection connection : connectionList) {
+            try {
+                connection.getSession().disconnect();
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * returns the cache key for a user's session to a host
+     *
+     * @param userId     user id
+     * @param hostSystem host system
+     * @return user id, user, host and port
+     */
+    private static String getConnectionKey(Long userId, HostSystem hostSystem) {
+        return userId + ":" + hostSystem.getUser() + "@" + hostSystem.getHost() + ":" + hostSystem.getPort();
+    }
+
+    /**
+     * returns session cache and warm pool metrics
+     *
+     * @return map of metrics
+     */
+    public static Map<String, Object> getConnectionStats() {
+
+        Map<String, Object> stats = new LinkedHashMap<>();
+        synchronized (connectionMap) {
+            stats.put("cachedSessions", connectionMap.size());
+            stats.put("warmSessions", warmCount);
+        }
+        long hits = warmHits.get();
+        long expired = warmExpired.get();
+        stats.put("warmOpened", warmOpened.get());
+        stats.put("warmHits", hits);
+        stats.put("warmExpired", expired);
+        stats.put("warmFailed", warmFailed.get());
+        stats.put("warmHitRate", (hits + expired > 0) ? (double) hits / (hits + expired) : 0);
+        return stats;
+    }
+
+    /**
+     * opens a shell channel on the session, the channel is connected once its streams are set up
+     *
+     * @param session authenticated session
+     * @return shell channel
+     */
+    private static Channel openShell(Session session) throws JSchException {
+
+        Channel channel = session.openChannel("shell");
+        if ("true".equals(AppConfig.getProperty("agentForwarding"))) {
+            ((ChannelShell) channel).setAgentForwarding(true);
+        }
+        ((ChannelShell) channel).setPtyType("xterm");
+        return channel;
+    }
+
+    /**
+     * removes a reference to the connection and disconnects the session when the last channel is closed
+     *
+     * @param connection connection
+     */
+    public static void releaseConnection(SSHConnection connection) {
+
+        boolean last;
+        synchronized (connectionMap) {
+            connection.setRefCount(connection.getRefCount() - 1);
+            last = connection.getRefCount() <= 0;
+            if (last && connectionMap.get(connection.getKey()) == connection) {
+                connectionMap.remove(connection.getKey());
+            }
+        }
+        if (last && connection.getSession() != null) {
+            connection.getSession().disconnect();
+        }
+    }
+
+    /**
+     * releases the ssh session used by a terminal, the session is only disconnected if no other terminal uses it
+     *
+     * @param schSession terminal session
+     */
+    public static void releaseSession(SchSession schSession) {
+
+        if (schSession.getConnection() != null) {
+            releaseConnection(schSession.getConnection());
+            schSession.setConnection(null);
+        } else if (schSession.getSession() != null) {
+            schSession.getSession().disconnect();
+        }
+    }
+
+    /**
+     * stops input and disconnects the channel of a terminal, the ssh session is released
+     *
+     * @param schSession terminal session
+     */
+    public static void disconnect(SchSession schSession) {
+
+        //the reader and a disconnect may both close the terminal, the connection is only released once
+        synchronized (schSession) {
+            try {
+                if (schSession.getInputTask() != null) {
+                    schSession.getInputTask().close();
+                }
+                if (schSession.getChannel() != null) {
+                    schSession.getChannel().disconnect();
+                }
+                releaseSession(schSession);
+            } catch (Exception ex) {
+                ex.printStackTrace();
+            }
+            schSession.setChannel(null);
+            schSession.setSession(null);
+            schSession.setInputToChannel(null);
+            schSession.setCommander(null);
+            schSession.setOutFromChannel(null);
+        }
+    }
+
+    /**
+     * disconnects all terminals of a user and removes their output
+     *
+     * @param userId         user id
+     * @param userSessionMap user session map
+     * @return number of terminals disconnected
+     */
+    public static int disconnectUser(Long userId, Map<Long, UserSchSessions> userSessionMap) {
+
+        if (userId == null) {
+            return 0;
+        }
+        int count = 0;
+        UserSchSessions userSchSessions = userSessionMap.remove(userId);
+        if (userSchSessions != null) {
+            for (SchSession schSession : userSchSessions.getSchSessionMap().values()) {
+                disconnect(schSession);
+                count++;
+            }
+            userSchSessions.getSchSessionMap().clear();
+        }
+        SessionOutputUtil.removeUserSession(userId);
+        return count;
+    }
+
+    /**
+     * returns input queue metrics for each open terminal of a user so hosts that stop reading input can be found
+     *
+     * @param userId         user id
+     * @param userSessionMap user session map
+     * @return list of metrics by terminal
+     */
+    public static List<Map<String, Object>> getInputStats(Long userId, Map<Long, UserSchSessions> userSessionMap) {
+
+        List<Map<String, Object>> statsList = new ArrayList<>();
+        UserSchSessions userSchSessions = userSessionMap.get(userId);
+        if (userSchSessions != null) {
+            for (Map.Entry<Integer, SchSession> entry : userSchSessions.getSchSessionMap().entrySet()) {
+                SchSession schSession = entry.getValue();
+                if (schSession.getInputTask() != null) {
+                    Map<String, Object> stats = new LinkedHashMap<>();
+                    stats.put("instanceId", entry.getKey());
+                    if (schSession.getHostSystem() != null) {
+                        stats.put("host", schSession.getHostSystem().getDisplayLabel());
+                    }
+                    stats.putAll(schSession.getInputTask().getStats());
+                    statsList.add(stats);
+                }
+            }
+        }
+        return statsList;
     }
 
 
@@ -0,0 +1,329 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.keybox.manage.model.ScrollbackRange;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Bounded history of the output sent to the web socket for a terminal.
+ * <p>
+ * Each char sent is numbered by its sequence, the end sequence is sent with the output so a client that
+ * reconnects can ask for the output after the last sequence it received. The last capacity chars are kept
+ * in memory. If a spill directory is set all output is also written to segment files so older history
+ * can be fetched by range, the oldest segments are closed and their space freed once the disk limit is reached
+ */
+public class ScrollbackBuffer {
+
+    //chars in each spill segment, a segment file is twice the size in bytes
+    private static final int SEGMENT_SHIFT = 20;
+    private static final int SEGMENT_CHARS = 1 << SEGMENT_SHIFT;
+
+    private final char[] buffer;
+    private final int capacity;
+    private final int mask;
+
+    //sequence after the last char appended
+    private long end = 0;
+
+    //segments in sequence order, null if output is not spilled to disk
+    private ArrayDeque<Segment> segments;
+    private File spillDir;
+    private int maxSegments;
+
+
+    /**
+     * @param size min number of chars to keep, rounded up to a power of two
+     */
+    public ScrollbackBuffer(int size) {
+        int cap = 1;
+        while (cap < size) {
+            cap = cap << 1;
+        }
+        this.capacity = cap;
+        this.mask = cap - 1;
+        this.buffer = new char[cap];
+    }
+
+    /**
+     * @param size     min number of chars to keep in memory, rounded up to a power of two
+     * @param spillDir directory for the segment files
+     * @param diskSize max number of chars to keep on disk
+     */
+    public ScrollbackBuffer(int size, File spillDir, long diskSize) {
+        this(size);
+        this.spillDir = spillDir;
+        this.maxSegments = (int) Math.max(2, (diskSize + SEGMENT_CHARS - 1) >> SEGMENT_SHIFT);
+        this.segments = new ArrayDeque<>();
+    }
+
+    /**
+     * adds output that is being sent to the client
+     *
+     * @param output output
+     * @return sequence after the output
+     */
+    public synchronized long append(String output) {
+
+        int count = output.length();
+        if (segments != null) {
+            spill(output, end);
+        }
+
+        int offset = 0;
+        //only the last capacity chars can be kept
+        if (count > capacity) {
+            offset = count - capacity;
+        }
+        for (int i = offset; i < count; ) {
+            int index = (int) ((end + i) & mask);
+            int n = Math.min(count - i, capacity - index);
+            output.getChars(i, i + n, buffer, index);
+            i = i + n;
+        }
+        end = end + count;
+        return end;
+    }
+
+    /**
+     * writes output to the segment files, spilling is stopped if a segment can not be created
+     *
+     * @param output   output
+     * @param position sequence of the first char
+     */
+    private void spill(String output, long position) {
+
+        try {
+            for (int i = 0; i < output.length(); ) {
+                long seq = position + i;
+                long index = seq >> SEGMENT_SHIFT;
+                Segment segment = segments.peekLast();
+                if (segment == null || segment.index != index) {
+                    segment = new Segment(index, spillDir);
+                    segments.addLast(segment);
+                    while (segments.size() > maxSegments) {
+                        segments.removeFirst().close();
+                    }
+                }
+                int offset = (int) (seq & (SEGMENT_CHARS - 1));
+                int n = Math.min(output.length() - i, SEGMENT_CHARS - offset);
+                segment.write(offset, output, i, n);
+                i = i + n;
+            }
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            close();
+            segments = null;
+        }
+    }
+
+    /**
+     * returns the output after a sequence that is still in memory. A marker is added if some of it is no longer kept
+     *
+     * @param from sequence the client has received up to
+     * @return output or null if there is none
+     */
+    public synchronized String readFrom(long from) {
+
+        if (from < 0 || from >= end) {
+            return null;
+        }
+        long start = Math.max(0, end - capacity);
+        StringBuilder sb = new StringBuilder();
+        if (from < start) {
+            sb.append("\r\n[").append(start - from).append(" characters of output not kept]\r\n");
+            from = start;
+        }
+        copyOut(sb, from, end);
+        return sb.toString();
+    }
+
+    /**
+     * returns up to length chars of history starting at a sequence, the range is moved forward to the oldest char kept
+     *
+     * @param from   sequence of the first char
+     * @param length max number of chars
+     * @return range of output
+     */
+    public synchronized ScrollbackRange read(long from, int length) {
+
+        long start = getStart();
+        from = Math.min(Math.max(from, start), end);
+        long to = Math.min(from + Math.max(length, 0), end);
+
+        StringBuilder sb = new StringBuilder((int) (to - from));
+        long memStart = Math.max(0, end - capacity);
+        long position = from;
+        //older chars come from the segment files
+        if (position < memStart && segments != null) {
+            try {
+                for (Iterator<Segment> it = segments.iterator(); it.hasNext() && position < Math.min(to, memStart); ) {
+                    Segment segment = it.next();
+                    long segmentEnd = (segment.index + 1) << SEGMENT_SHIFT;
+                    if (position < segmentEnd) {
+                        int offset = (int) (position & (SEGMENT_CHARS - 1));
+                        int n = (int) (Math.min(Math.min(to, memStart), segmentEnd) - position);
+                        segment.read(sb, offset, n);
+                        position = position + n;
+                    }
+                }
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            //chars that could not be read from disk are not returned
+            if (position < memStart) {
+                from = Math.min(Math.max(position, memStart), to);
+                position = from;
+                sb.setLength(0);
+            }
+        }
+        if (position < to) {
+            copyOut(sb, position, to);
+        }
+
+        ScrollbackRange range = new ScrollbackRange();
+        range.setFrom(from);
+        range.setTo(to);
+        range.setStart(start);
+        range.setEnd(end);
+        range.setOutput(sb.toString());
+        return range;
+    }
+
+    private void copyOut(StringBuilder sb, long from, long to) {
+
+        int index = (int) (from & mask);
+        int count = (int) (to - from);
+        int first = Math.min(count, capacity - index);
+        sb.append(buffer, index, first);
+        if (first < count) {
+            sb.append(buffer, 0, count - first);
+        }
+    }
+
+    /**
+     * @return sequence of the oldest char kept in memory or on disk
+     */
+    public synchronized long getStart() {
+        long start = Math.max(0, end - capacity);
+        if (segments != null && !segments.isEmpty()) {
+            start = Math.min(start, segments.peekFirst().index << SEGMENT_SHIFT);
+        }
+        return start;
+    }
+
+    /**
+     * @return sequence after the last char appended
+     */
+    public synchronized long getEnd() {
+        return end;
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * closes the segment files
+     */
+    public synchronized void close() {
+        if (segments != null) {
+            for (Segment segment : segments) {
+                segment.close();
+            }
+            segments.clear();
+        }
+    }
+
+    /**
+     * file holding SEGMENT_CHARS chars of history as UTF-16
+     */
+    private static class Segment {
+
+        final long index;
+        final File file;
+        final RandomAccessFile raf;
+        final FileChannel channel;
+
+        Segment(long index, File dir) throws IOException {
+            this.index = index;
+            this.file = File.createTempFile("scrollback", ".seg", dir);
+            this.raf = new RandomAccessFile(file, "rw");
+            this.channel = raf.getChannel();
+            //the open file stays readable after it is removed so nothing is left behind if the server stops
+            if (!file.delete()) {
+                file.deleteOnExit();
+            }
+        }
+
+        /**
+         * writes chars at an offset in the segment
+         *
+         * @param offset offset in chars
+         * @param output output
+         * @param start  index of the first char in the output
+         * @param count  number of chars
+         */
+        void write(int offset, String output, int start, int count) throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocate(count * 2);
+            bytes.asCharBuffer().put(output, start, start + count);
+            long position = offset * 2L;
+            while (bytes.hasRemaining()) {
+                position = position + channel.write(bytes, position);
+            }
+        }
+
+        /**
+         * reads chars at an offset in the segment
+         *
+         * @param sb     builder the chars are added to
+         * @param offset offset in chars
+         * @param count  number of chars
+         */
+        void read(StringBuilder sb, int offset, int count) throws IOException {
+            ByteBuffer bytes = ByteBuffer.allocate(count * 2);
+            long position = offset * 2L;
+            while (bytes.hasRemaining()) {
+                int n = channel.read(bytes, position);
+                if (n < 0) {
+                    throw new IOException("Scrollback segment is shorter than expected");
+                }
+                position = position + n;
+            }
+            bytes.flip();
+            sb.append(bytes.asCharBuffer());
+        }
+
+        void close() {
+            try {
+                raf.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            //removed here if it could not be removed while open
+            if (file.exists()) {
+                file.delete();
+            }
+        }
+    }
+}
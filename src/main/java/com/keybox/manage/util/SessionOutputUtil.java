@@ -16,14 +16,21 @@
 package com.keybox.manage.util;
 
 import com.keybox.common.util.AppConfig;
+import com.keybox.manage.db.UserThemeDB;
+import com.keybox.manage.model.ScrollbackRange;
 import com.keybox.manage.model.SessionHostOutput;
 import com.keybox.manage.model.SessionOutput;
 import com.keybox.manage.model.UserSessionsOutput;
+import com.keybox.manage.model.UserSettings;
+import com.keybox.manage.task.SentOutputTask;
 import org.apache.commons.lang3.StringUtils;
 
+import java.io.File;
 import java.sql.Connection;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Utility to is used to store the output for a session until the ajax call that brings it to the screen
@@ -31,8 +38,263 @@ import java.util.concurrent.ConcurrentHashMap;
 public class SessionOutputUtil {
 
 
-    private static Map<Long, UserSessionsOutput> userSessionsOutputMap = new ConcurrentHashMap<Long, UserSessionsOutput>();
+    private static ConcurrentMap<Long, UserSessionsOutput> userSessionsOutputMap = new ConcurrentHashMap<Long, UserSessionsOutput>();
 
+    //time in ms to wait after output arrives so bursts are sent as a single message
+    public static final long OUTPUT_FLUSH_DELAY = Long.parseLong(AppConfig.getProperty("outputFlushDelay", "5"));
+
+    //max chars of output held for each terminal until it is sent
+    public static final int OUTPUT_BUFFER_SIZE = Integer.parseInt(AppConfig.getProperty("outputBufferSize", "65536"));
+    //drop the oldest output or block the ssh reader when the buffer is full
+    public static final String OUTPUT_BUFFER_POLICY = AppConfig.getProperty("outputBufferPolicy", OutputRingBuffer.DROP_POLICY);
+
+    //pause the ssh reader while a send is in flight and the buffered output is over the high water mark
+    public static final boolean PAUSE_READER_ON_SLOW_CLIENT = "true".equals(AppConfig.getProperty("pauseReaderOnSlowClient", "true"));
+    public static final int SLOW_CLIENT_HIGH_WATER = Integer.parseInt(AppConfig.getProperty("slowClientHighWater", "32768"));
+
+    //max chars of sent output kept for each terminal so it can be replayed after a reconnect
+    public static final int SCROLLBACK_SIZE = Integer.parseInt(AppConfig.getProperty("scrollbackSize", "65536"));
+    //also keep history in memory-mapped files so older output can be fetched, max chars kept on disk for each terminal
+    public static final boolean SCROLLBACK_SPILL = "true".equals(AppConfig.getProperty("scrollbackSpill", "false"));
+    public static final long SCROLLBACK_DISK_SIZE = Long.parseLong(AppConfig.getProperty("scrollbackDiskSize", "4194304"));
+    public static final String SCROLLBACK_SPILL_DIR = AppConfig.getProperty("scrollbackSpillDir", System.getProperty("java.io.tmpdir"));
+    //max chars returned by a history fetch
+    public static final int SCROLLBACK_MAX_FETCH = 65536;
+
+    //keep a screen of each terminal so clients that ask for it are sent the changed cells instead of the raw output
+    public static final boolean SCREEN_UPDATES = "true".equals(AppConfig.getProperty("screenUpdates", "false"));
+    //max screen updates sent per second to a web socket
+    public static final int SCREEN_FRAME_RATE = Integer.parseInt(AppConfig.getProperty("screenFrameRate", "20"));
+    public static final long SCREEN_FRAME_INTERVAL = 1000 / Math.max(1, SCREEN_FRAME_RATE);
+    //size of the screen until the client sets the pty size
+    private static final int DEFAULT_COLS = 80;
+    private static final int DEFAULT_ROWS = 24;
+
+    //max output chars per second sent for each terminal unless set by the user, 0 for no limit
+    public static final int OUTPUT_RATE_LIMIT = Integer.parseInt(AppConfig.getProperty("outputRateLimit", "131072"));
+    //time in ms between updates of a terminal while output over the limit is suppressed
+    public static final long OUTPUT_COALESCE_INTERVAL = Long.parseLong(AppConfig.getProperty("outputCoalesceInterval", "250"));
+
+    private static final long PAUSE_WAIT = 100;
+
+    private static AtomicLong readerPauses = new AtomicLong(0);
+    //raw output chars fed to screens and chars of screen updates sent for them
+    private static AtomicLong screenOutputChars = new AtomicLong(0);
+    private static AtomicLong screenUpdateChars = new AtomicLong(0);
+
+
+    /**
+     * returns output for user session and creates it if it doesn't exist
+     *
+     * @param sessionId session id
+     * @return user session output
+     */
+    private static UserSessionsOutput getUserSessionsOutput(Long sessionId) {
+
+        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        if (userSessionsOutput == null) {
+            UserSessionsOutput created = new UserSessionsOutput();
+            created.setOutputRateLimit(getUserOutputRateLimit(sessionId));
+            userSessionsOutputMap.putIfAbsent(sessionId, created);
+            userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        }
+        return userSessionsOutput;
+    }
+
+    /**
+     * returns the output rate limit from the user settings or the default
+     *
+     * @param userId user id
+     * @return max chars per second
+     */
+    private static int getUserOutputRateLimit(Long userId) {
+
+        UserSettings userSettings = UserThemeDB.getTheme(userId);
+        if (userSettings != null && userSettings.getOutputRateLimit() != null && userSettings.getOutputRateLimit() > 0) {
+            return userSettings.getOutputRateLimit();
+        }
+        return OUTPUT_RATE_LIMIT;
+    }
+
+    /**
+     * sets the output rate limit for the open terminals of a user
+     *
+     * @param sessionId       session id
+     * @param outputRateLimit max chars per second or null for the default
+     */
+    public static void setOutputRateLimit(Long sessionId, Integer outputRateLimit) {
+
+        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        if (userSessionsOutput != null) {
+            int rate = (outputRateLimit != null && outputRateLimit > 0) ? outputRateLimit : OUTPUT_RATE_LIMIT;
+            userSessionsOutput.setOutputRateLimit(rate);
+            for (SessionHostOutput sessionHostOutput : userSessionsOutput.getSessionOutputMap().values()) {
+                sessionHostOutput.getRateLimiter().setRate(rate);
+            }
+        }
+    }
+
+    /**
+     * registers the task that sends output to the web socket and flushes any output already buffered
+     *
+     * @param sessionId  session id
+     * @param outputTask task to run when output is available
+     */
+    public static void registerOutputTask(Long sessionId, Runnable outputTask) {
+
+        UserSessionsOutput userSessionsOutput = getUserSessionsOutput(sessionId);
+        synchronized (userSessionsOutput) {
+            userSessionsOutput.setOutputTask(outputTask);
+            userSessionsOutput.setDetachedTm(0);
+        }
+        userSessionsOutput.getFlushPending().set(true);
+        ExecutorUtil.executeOutput(outputTask);
+    }
+
+    /**
+     * removes the output task of a closed web socket and keeps the output until another web socket is registered
+     *
+     * @param sessionId  session id
+     * @param outputTask task of the closed web socket
+     * @return time the output was detached or 0 if another web socket has already been registered
+     */
+    public static long detachOutputTask(Long sessionId, Runnable outputTask) {
+
+        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        if (userSessionsOutput != null) {
+            synchronized (userSessionsOutput) {
+                if (userSessionsOutput.getOutputTask() == outputTask) {
+                    long detachedTm = System.currentTimeMillis();
+                    userSessionsOutput.setOutputTask(null);
+                    userSessionsOutput.setDetachedTm(detachedTm);
+                    //release readers paused for the closed web socket
+                    userSessionsOutput.setSendInFlight(false);
+                    userSessionsOutput.notifyAll();
+                    return detachedTm;
+                }
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * returns true if no web socket has been registered since the output was detached
+     *
+     * @param sessionId  session id
+     * @param detachedTm time the output was detached
+     * @return true if still detached
+     */
+    public static boolean isDetached(Long sessionId, long detachedTm) {
+
+        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        return userSessionsOutput != null && userSessionsOutput.getOutputTask() == null
+                && userSessionsOutput.getDetachedTm() == detachedTm;
+    }
+
+    /**
+     * schedules the output task if a flush is not already pending
+     *
+     * @param userSessionsOutput user session output
+     */
+    private static void scheduleFlush(UserSessionsOutput userSessionsOutput) {
+
+        Runnable outputTask = userSessionsOutput.getOutputTask();
+        if (outputTask != null && userSessionsOutput.getFlushPending().compareAndSet(false, true)) {
+            ExecutorUtil.scheduleOutput(outputTask, OUTPUT_FLUSH_DELAY);
+        }
+    }
+
+
+    /**
+     * schedules a flush for output held by a rate limit, which is sent even if no more output arrives.
+     * Output that arrives in the meantime is still flushed without waiting
+     *
+     * @param userSessionsOutput user session output
+     * @param delay              delay in ms
+     */
+    private static void scheduleHeldFlush(final UserSessionsOutput userSessionsOutput, long delay) {
+
+        final Runnable outputTask = userSessionsOutput.getOutputTask();
+        if (outputTask != null && userSessionsOutput.getHeldFlushPending().compareAndSet(false, true)) {
+            ExecutorUtil.scheduleOutput(new Runnable() {
+                @Override
+                public void run() {
+                    userSessionsOutput.getHeldFlushPending().set(false);
+                    //kept pending if a send is in flight so it runs when the send completes
+                    userSessionsOutput.getFlushPending().set(true);
+                    outputTask.run();
+                }
+            }, delay);
+        }
+    }
+
+    /**
+     * marks the web socket as sending
+     *
+     * @param sessionId session id
+     */
+    public static void sendStarted(Long sessionId) {
+
+        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        if (userSessionsOutput != null) {
+            userSessionsOutput.setSendInFlight(true);
+        }
+    }
+
+    /**
+     * releases readers paused for the web socket and flushes output that arrived during the send
+     *
+     * @param sessionId session id
+     */
+    public static void sendCompleted(Long sessionId) {
+
+        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        if (userSessionsOutput != null) {
+            synchronized (userSessionsOutput) {
+                userSessionsOutput.setSendInFlight(false);
+                userSessionsOutput.notifyAll();
+            }
+            Runnable outputTask = userSessionsOutput.getOutputTask();
+            if (outputTask != null && userSessionsOutput.getFlushPending().get()) {
+                ExecutorUtil.executeOutput(outputTask);
+            }
+        }
+    }
+
+    /**
+     * blocks the ssh reader while the client is behind so the channel applies back-pressure to the host
+     *
+     * @param userSessionsOutput user session output
+     * @param output             output buffer for the reader
+     */
+    private static void waitForClient(UserSessionsOutput userSessionsOutput, OutputRingBuffer output) {
+
+        if (userSessionsOutput.isSendInFlight() && output.size() > SLOW_CLIENT_HIGH_WATER) {
+            readerPauses.incrementAndGet();
+            synchronized (userSessionsOutput) {
+                try {
+                    while (userSessionsOutput.isSendInFlight() && output.size() > SLOW_CLIENT_HIGH_WATER && !output.isClosed()) {
+                        userSessionsOutput.wait(PAUSE_WAIT);
+                    }
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+
+    /**
+     * returns true if the user has a web socket open for terminal output
+     *
+     * @param sessionId session id
+     * @return true if open
+     */
+    public static boolean isWebSocketOpen(Long sessionId) {
+
+        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        return userSessionsOutput != null && userSessionsOutput.getOutputTask() instanceof SentOutputTask
+                && ((SentOutputTask) userSessionsOutput.getOutputTask()).isOpen();
+    }
 
     /**
      * removes session for user session
@@ -42,6 +304,10 @@ public class SessionOutputUtil {
     public static void removeUserSession(Long sessionId) {
         UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
         if (userSessionsOutput != null) {
+            for (SessionHostOutput sessionHostOutput : userSessionsOutput.getSessionOutputMap().values()) {
+                sessionHostOutput.getOutput().close();
+                sessionHostOutput.getScrollback().close();
+            }
             userSessionsOutput.getSessionOutputMap().clear();
         }
         userSessionsOutputMap.remove(sessionId);
@@ -49,17 +315,21 @@ public class SessionOutputUtil {
     }
 
     /**
-     * removes session output for host system
+     * removes session output for host system if it is still the output of the terminal, the instance id may
+     * already be used by a new terminal
      *
-     * @param sessionId    session id
-     * @param instanceId id of host system instance
+     * @param sessionId         session id
+     * @param instanceId        id of host system instance
+     * @param sessionHostOutput output returned by addOutput
      */
-    public static void removeOutput(Long sessionId, Integer instanceId) {
+    public static void removeOutput(Long sessionId, Integer instanceId, SessionHostOutput sessionHostOutput) {
 
         UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
         if (userSessionsOutput != null) {
-            userSessionsOutput.getSessionOutputMap().remove(instanceId);
+            userSessionsOutput.getSessionOutputMap().remove(instanceId, sessionHostOutput);
         }
+        sessionHostOutput.getOutput().close();
+        sessionHostOutput.getScrollback().close();
     }
 
     /**
@@ -68,35 +338,105 @@ public class SessionOutputUtil {
      * @param sessionId     session id
      * @param hostId        host id
      * @param sessionOutput session output object
+     * @return output of the terminal
      */
-    public static void addOutput(Long sessionId, Long hostId, SessionOutput sessionOutput) {
+    public static SessionHostOutput addOutput(Long sessionId, Long hostId, SessionOutput sessionOutput) {
 
-        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
-        if (userSessionsOutput == null) {
-            userSessionsOutputMap.put(sessionId, new UserSessionsOutput());
-            userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        UserSessionsOutput userSessionsOutput = getUserSessionsOutput(sessionId);
+        SessionHostOutput sessionHostOutput = new SessionHostOutput(hostId, new OutputRingBuffer(OUTPUT_BUFFER_SIZE, OUTPUT_BUFFER_POLICY), createScrollback());
+        sessionHostOutput.setRateLimiter(new OutputRateLimiter(userSessionsOutput.getOutputRateLimit(), OUTPUT_COALESCE_INTERVAL));
+        if (SCREEN_UPDATES) {
+            sessionHostOutput.setScreen(new TerminalScreen(DEFAULT_COLS, DEFAULT_ROWS));
         }
-        userSessionsOutput.getSessionOutputMap().put(sessionOutput.getInstanceId(), new SessionHostOutput(hostId, new StringBuilder()));
+        userSessionsOutput.getSessionOutputMap().put(sessionOutput.getInstanceId(), sessionHostOutput);
+        return sessionHostOutput;
+    }
+
 
+    /**
+     * creates the history for a terminal, spilled to disk if enabled and the directory exists
+     *
+     * @return scrollback buffer
+     */
+    private static ScrollbackBuffer createScrollback() {
 
+        if (SCROLLBACK_SPILL) {
+            File spillDir = new File(SCROLLBACK_SPILL_DIR);
+            if (spillDir.isDirectory() || spillDir.mkdirs()) {
+                return new ScrollbackBuffer(SCROLLBACK_SIZE, spillDir, SCROLLBACK_DISK_SIZE);
+            }
+        }
+        return new ScrollbackBuffer(SCROLLBACK_SIZE);
     }
 
+    /**
+     * resizes the screen of a terminal to the pty size, the whole screen is sent with the next update
+     *
+     * @param sessionId  session id
+     * @param instanceId id of host system instance
+     * @param cols       number of columns
+     * @param rows       number of rows
+     */
+    public static void resizeScreen(Long sessionId, Integer instanceId, int cols, int rows) {
+
+        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        if (userSessionsOutput != null) {
+            SessionHostOutput sessionHostOutput = userSessionsOutput.getSessionOutputMap().get(instanceId);
+            if (sessionHostOutput != null && sessionHostOutput.getScreen() != null) {
+                sessionHostOutput.getScreen().resize(cols, rows);
+                scheduleFlush(userSessionsOutput);
+            }
+        }
+    }
 
     /**
-     * adds a new output
+     * returns a range of output history for a terminal
      *
-     * @param sessionId    session id
+     * @param sessionId  session id
      * @param instanceId id of host system instance
-     * @param value        Array that is the source of characters
-     * @param offset       The initial offset
-     * @param count        The length
+     * @param from       sequence of the first char, null for the latest output
+     * @param length     max number of chars
+     * @return range of output or null if the terminal is not found
      */
-    public static void addToOutput(Long sessionId, Integer instanceId, char value[], int offset, int count) {
+    public static ScrollbackRange getScrollback(Long sessionId, Integer instanceId, Long from, Integer length) {
+
+        if (sessionId == null || instanceId == null) {
+            return null;
+        }
+        UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
+        if (userSessionsOutput == null) {
+            return null;
+        }
+        SessionHostOutput sessionHostOutput = userSessionsOutput.getSessionOutputMap().get(instanceId);
+        if (sessionHostOutput == null) {
+            return null;
+        }
+        int count = (length == null || length <= 0) ? SCROLLBACK_MAX_FETCH : Math.min(length, SCROLLBACK_MAX_FETCH);
+        ScrollbackBuffer scrollback = sessionHostOutput.getScrollback();
+        ScrollbackRange range = scrollback.read(from != null ? from : scrollback.getEnd() - count, count);
+        range.setInstanceId(instanceId);
+        return range;
+    }
 
+    /**
+     * adds a new output to the output of the terminal returned by addOutput, so a reader that is
+     * ending never writes to a new terminal that was given its instance id
+     *
+     * @param sessionId         session id
+     * @param sessionHostOutput output of the terminal
+     * @param value             Array that is the source of characters
+     * @param offset            The initial offset
+     * @param count             The length
+     */
+    public static void addToOutput(Long sessionId, SessionHostOutput sessionHostOutput, char value[], int offset, int count) {
 
+        sessionHostOutput.getOutput().write(value, offset, count);
         UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
         if (userSessionsOutput != null) {
-            userSessionsOutput.getSessionOutputMap().get(instanceId).getOutput().append(value, offset, count);
+            scheduleFlush(userSessionsOutput);
+            if (PAUSE_READER_ON_SLOW_CLIENT) {
+                waitForClient(userSessionsOutput, sessionHostOutput.getOutput());
+            }
         }
 
     }
@@ -109,33 +449,98 @@ public class SessionOutputUtil {
      * @return session output list
      */
     public static List<SessionOutput> getOutput(Long sessionId) {
+        return getOutput(sessionId, null);
+    }
+
+    /**
+     * returns list of output lines, output a reconnected client missed is sent before the new output
+     *
+     * @param sessionId  session id object
+     * @param resumeFrom sequence received by the client for each instance id, null if not resuming
+     * @return session output list
+     */
+    public static List<SessionOutput> getOutput(Long sessionId, Map<Integer, Long> resumeFrom) {
+        return getOutput(sessionId, resumeFrom, false);
+    }
+
+    /**
+     * returns list of output lines or, in screen mode, the changes to the screen of each terminal
+     *
+     * @param sessionId  session id object
+     * @param resumeFrom sequence received by the client for each instance id, null if not resuming.
+     *                   In screen mode the whole screen is sent instead of the missed output
+     * @param screenMode true to send screen updates for terminals that have a screen
+     * @return session output list
+     */
+    public static List<SessionOutput> getOutput(Long sessionId, Map<Integer, Long> resumeFrom, boolean screenMode) {
         List<SessionOutput> outputList = new ArrayList<SessionOutput>();
 
 
         UserSessionsOutput userSessionsOutput = userSessionsOutputMap.get(sessionId);
         if (userSessionsOutput != null) {
 
-
+            //clear before reading so output appended during the read schedules another flush
+            userSessionsOutput.getFlushPending().set(false);
+            long now = System.currentTimeMillis();
+            long heldDelay = -1;
 
             for (Integer key : userSessionsOutput.getSessionOutputMap().keySet()) {
 
                 //get output chars and set to output
                 try {
                     SessionHostOutput sessionHostOutput = userSessionsOutput.getSessionOutputMap().get(key);
-                    Long hostId = sessionHostOutput.getId();
-                    StringBuilder sb = sessionHostOutput.getOutput();
-                    if (sb != null) {
+                    String output = sessionHostOutput.getOutput().drain();
+                    //screens follow all output so a client can switch to screen mode at any time
+                    TerminalScreen screen = sessionHostOutput.getScreen();
+                    if (screen != null && StringUtils.isNotEmpty(output)) {
+                        screen.feed(output);
+                    }
+                    if (screenMode && screen != null) {
+                        //the raw output is still kept as history
+                        long seq = StringUtils.isNotEmpty(output) ? sessionHostOutput.getScrollback().append(output) : sessionHostOutput.getScrollback().getEnd();
+                        screenOutputChars.addAndGet(output != null ? output.length() : 0);
+                        String update = screen.render(resumeFrom != null);
+                        if (update != null) {
+                            screenUpdateChars.addAndGet(update.length());
+                            SessionOutput sessionOutput = new SessionOutput();
+                            sessionOutput.setSessionId(sessionId);
+                            sessionOutput.setHostSystemId(sessionHostOutput.getId());
+                            sessionOutput.setInstanceId(key);
+                            sessionOutput.setOutput(update);
+                            sessionOutput.setSeq(seq);
+
+                            outputList.add(sessionOutput);
+                        }
+                        continue;
+                    }
+                    String missed = null;
+                    if (resumeFrom != null) {
+                        Long seq = resumeFrom.get(key);
+                        missed = sessionHostOutput.getScrollback().readFrom(seq != null ? seq : 0);
+                    }
+                    long seq = sessionHostOutput.getScrollback().getEnd();
+                    if (StringUtils.isNotEmpty(output)) {
+                        seq = sessionHostOutput.getScrollback().append(output);
+                    }
+                    //output over the rate limit is skipped except for the last screenful, the history keeps all of it
+                    OutputRateLimiter rateLimiter = sessionHostOutput.getRateLimiter();
+                    output = rateLimiter.limit(output, screen != null ? screen.getRows() : DEFAULT_ROWS, now);
+                    long delay = rateLimiter.getHeldDelay(now);
+                    if (delay >= 0 && (heldDelay < 0 || delay < heldDelay)) {
+                        heldDelay = delay;
+                    }
+                    if (StringUtils.isNotEmpty(output) || StringUtils.isNotEmpty(missed)) {
+                        if (StringUtils.isNotEmpty(missed)) {
+                            output = (output != null) ? missed + output : missed;
+                        }
                         SessionOutput sessionOutput = new SessionOutput();
                         sessionOutput.setSessionId(sessionId);
-                        sessionOutput.setHostSystemId(hostId);
+                        sessionOutput.setHostSystemId(sessionHostOutput.getId());
                         sessionOutput.setInstanceId(key);
+                        sessionOutput.setOutput(output);
+                        sessionOutput.setSeq(seq);
 
-                        sessionOutput.setOutput(sb.toString());
-
-                        if (StringUtils.isNotEmpty(sessionOutput.getOutput())) {
-                            outputList.add(sessionOutput);
-                            userSessionsOutput.getSessionOutputMap().put(key, new SessionHostOutput(hostId, new StringBuilder()));
-                        }
+                        outputList.add(sessionOutput);
                     }
                 } catch (Exception ex) {
                     ex.printStackTrace();
@@ -143,11 +548,56 @@ public class SessionOutputUtil {
 
             }
 
+            if (heldDelay >= 0) {
+                scheduleHeldFlush(userSessionsOutput, heldDelay);
+            }
+
         }
 
 
         return outputList;
     }
 
+    /**
+     * returns buffered and dropped output counts and web socket metrics by session
+     *
+     * @return map of metrics
+     */
+    public static Map<String, Object> getStats() {
+
+        int terminals = 0;
+        long buffered = 0;
+        int suppressing = 0;
+        Map<Long, Object> webSockets = new LinkedHashMap<Long, Object>();
+        for (Map.Entry<Long, UserSessionsOutput> entry : userSessionsOutputMap.entrySet()) {
+            UserSessionsOutput userSessionsOutput = entry.getValue();
+            if (userSessionsOutput.getOutputTask() instanceof SentOutputTask) {
+                webSockets.put(entry.getKey(), ((SentOutputTask) userSessionsOutput.getOutputTask()).getStats());
+            }
+            for (SessionHostOutput sessionHostOutput : userSessionsOutput.getSessionOutputMap().values()) {
+                terminals++;
+                buffered = buffered + sessionHostOutput.getOutput().size();
+                if (sessionHostOutput.getRateLimiter().isSuppressing()) {
+                    suppressing++;
+                }
+            }
+        }
+
+        Map<String, Object> stats = new LinkedHashMap<String, Object>();
+        stats.put("terminals", terminals);
+        stats.put("bufferedChars", buffered);
+        stats.put("droppedChars", OutputRingBuffer.getTotalDropped());
+        stats.put("readerPauses", readerPauses.get());
+        stats.put("suppressingTerminals", suppressing);
+        stats.put("suppressions", OutputRateLimiter.getTotalSuppressions());
+        stats.put("suppressedChars", OutputRateLimiter.getTotalSuppressedChars());
+        if (SCREEN_UPDATES) {
+            stats.put("screenOutputChars", screenOutputChars.get());
+            stats.put("screenUpdateChars", screenUpdateChars.get());
+        }
+        stats.put("webSockets", webSockets);
+        return stats;
+    }
+
 
 }
@@ -0,0 +1,278 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import com.google.gson.Gson;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+
+/**
+ * Records the output and input of a terminal to an append-only file.
+ * <p>
+ * The ssh reader and input tasks only queue frames, the recording thread writes them. Frames are asciicast
+ * lines of elapsed seconds, "o" for output or "i" for input and the data. Input is copied into a buffer
+ * without allocating and written as one frame for each flush. Lines are collected into blocks that are
+ * written as the uncompressed length (int), the compressed length (int) and the deflated lines
+ */
+public class SessionRecorder {
+
+    public static final String OUTPUT = "o";
+    public static final String INPUT = "i";
+
+    private static final int BLOCK_HEADER_SIZE = 8;
+
+    private static final Gson gson = new Gson();
+
+    private final File file;
+    private final String header;
+    private final Charset charset;
+    private final long startNanos = System.nanoTime();
+
+    private final ConcurrentLinkedQueue<Frame> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger queuedChars = new AtomicInteger(0);
+    private final AtomicLong droppedChars = new AtomicLong(0);
+    private volatile boolean closed = false;
+
+    //input since the last flush and the time of its first byte, guarded by the input lock
+    private final Object inputLock = new Object();
+    private byte[] inputBuffer = new byte[256];
+    private int inputLength = 0;
+    private long inputTime = 0;
+
+    //only used by the recording thread
+    private FileChannel channel;
+    private final StringBuilder block = new StringBuilder();
+    private Deflater deflater;
+    private byte[] compressBuffer = new byte[8192];
+
+
+    /**
+     * @param file    recording file
+     * @param header  asciicast header line written first
+     * @param charset charset of the input sent to the host
+     */
+    public SessionRecorder(File file, String header, Charset charset) {
+        this.file = file;
+        this.header = header;
+        this.charset = charset;
+    }
+
+    /**
+     * queues output read from the host. Called by the ssh reader
+     *
+     * @param value  Array that is the source of characters
+     * @param offset The initial offset
+     * @param count  The length
+     */
+    public void recordOutput(char[] value, int offset, int count) {
+        if (reserve(count)) {
+            queue.offer(new Frame(elapsed(), OUTPUT, new String(value, offset, count)));
+        }
+    }
+
+    /**
+     * adds input sent to the host to the input buffer
+     *
+     * @param data input bytes
+     */
+    public void recordInput(byte[] data) {
+        if (reserve(data.length)) {
+            synchronized (inputLock) {
+                if (inputLength == 0) {
+                    inputTime = elapsed();
+                }
+                if (inputLength + data.length > inputBuffer.length) {
+                    byte[] buffer = new byte[Math.max(inputBuffer.length * 2, inputLength + data.length)];
+                    System.arraycopy(inputBuffer, 0, buffer, 0, inputLength);
+                    inputBuffer = buffer;
+                }
+                System.arraycopy(data, 0, inputBuffer, inputLength, data.length);
+                inputLength = inputLength + data.length;
+            }
+        }
+    }
+
+    /**
+     * the reader is never blocked by the recorder, frames are counted as dropped if the writer falls behind
+     */
+    private boolean reserve(int count) {
+        if (closed) {
+            return false;
+        }
+        if (queuedChars.get() + count > RecordingUtil.RECORDING_QUEUE_LIMIT) {
+            droppedChars.addAndGet(count);
+            return false;
+        }
+        queuedChars.addAndGet(count);
+        return true;
+    }
+
+    private long elapsed() {
+        return System.nanoTime() - startNanos;
+    }
+
+    /**
+     * writes queued frames as blocks. Called by the recording thread only
+     *
+     * @return false once the recorder is closed and everything has been written
+     */
+    public boolean flush() {
+
+        boolean done = closed;
+        try {
+            if (channel == null) {
+                channel = new RandomAccessFile(file, "rw").getChannel();
+                channel.position(channel.size());
+                deflater = new Deflater(RecordingUtil.RECORDING_COMPRESS_LEVEL);
+                block.append(header).append('\n');
+            }
+            String input = null;
+            long time = 0;
+            synchronized (inputLock) {
+                if (inputLength > 0) {
+                    input = new String(inputBuffer, 0, inputLength, charset);
+                    time = inputTime;
+                    queuedChars.addAndGet(-inputLength);
+                    inputLength = 0;
+                }
+            }
+            Frame frame;
+            while ((frame = queue.poll()) != null) {
+                //input is written before the output that came after it
+                if (input != null && frame.time > time) {
+                    appendFrame(time, INPUT, input);
+                    input = null;
+                }
+                queuedChars.addAndGet(-frame.data.length());
+                appendFrame(frame.time, frame.type, frame.data);
+                if (block.length() >= RecordingUtil.RECORDING_BLOCK_SIZE) {
+                    writeBlock();
+                }
+            }
+            if (input != null) {
+                appendFrame(time, INPUT, input);
+            }
+            if (droppedChars.get() > 0) {
+                long dropped = droppedChars.getAndSet(0);
+                appendFrame(elapsed(), OUTPUT, "\r\n[" + dropped + " characters not recorded]\r\n");
+            }
+            writeBlock();
+        } catch (IOException ex) {
+            ex.printStackTrace();
+            done = true;
+        }
+
+        if (done) {
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    private void appendFrame(long time, String type, String data) {
+        block.append('[').append(String.format(Locale.US, "%.6f", time / 1e9)).append(", \"")
+                .append(type).append("\", ").append(gson.toJson(data)).append("]\n");
+    }
+
+    /**
+     * compresses the collected lines and appends them to the file
+     */
+    private void writeBlock() throws IOException {
+
+        if (block.length() == 0) {
+            return;
+        }
+        byte[] raw = block.toString().getBytes(StandardCharsets.UTF_8);
+        block.setLength(0);
+
+        deflater.reset();
+        deflater.setInput(raw);
+        deflater.finish();
+        int size = 0;
+        while (!deflater.finished()) {
+            if (size == compressBuffer.length) {
+                byte[] buffer = new byte[compressBuffer.length * 2];
+                System.arraycopy(compressBuffer, 0, buffer, 0, size);
+                compressBuffer = buffer;
+            }
+            size = size + deflater.deflate(compressBuffer, size, compressBuffer.length - size);
+        }
+
+        ByteBuffer out = ByteBuffer.allocate(BLOCK_HEADER_SIZE + size);
+        out.putInt(raw.length);
+        out.putInt(size);
+        out.put(compressBuffer, 0, size);
+        out.flip();
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+    }
+
+    private void release() {
+
+        queue.clear();
+        if (deflater != null) {
+            deflater.end();
+            deflater = null;
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                ex.printStackTrace();
+            }
+            channel = null;
+        }
+    }
+
+    /**
+     * stops recording, queued frames are written by the next flush
+     */
+    public void close() {
+        closed = true;
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * timestamped output or input
+     */
+    private static class Frame {
+
+        final long time;
+        final String type;
+        final String data;
+
+        Frame(long time, String type, String data) {
+            this.time = time;
+            this.type = type;
+            this.data = data;
+        }
+    }
+}
@@ -0,0 +1,852 @@
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.keybox.manage.util;
+
+import java.util.Arrays;
+
+/**
+ * Screen of a terminal kept by following the VT100 / xterm control sequences in its output.
+ * <p>
+ * Output is fed as it is drained and render returns the escape sequences that change the screen the
+ * client last received into the current screen, so a program that redraws often only sends the cells that
+ * changed since the last frame. Lines scrolled off the full screen are sent as new lines so the client keeps
+ * its scrollback. Wide chars are treated as one cell
+ */
+public class TerminalScreen {
+
+    //attribute bits, colors are 0-255 or DEFAULT_COLOR
+    private static final int DEFAULT_COLOR = 256;
+    private static final int COLOR_MASK = 0x1ff;
+    private static final int BG_SHIFT = 9;
+    private static final int BOLD = 1 << 18;
+    private static final int UNDERLINE = 1 << 19;
+    private static final int INVERSE = 1 << 20;
+    private static final int DEFAULT_ATTR = DEFAULT_COLOR | (DEFAULT_COLOR << BG_SHIFT);
+
+    //parser states
+    private static final int GROUND = 0;
+    private static final int ESCAPE = 1;
+    private static final int CSI = 2;
+    private static final int OSC = 3;
+    private static final int OSC_ESCAPE = 4;
+    private static final int SKIP_ONE = 5;
+
+    private static final int MAX_PARAMS = 16;
+    private static final int MAX_PARAM_VALUE = 65535;
+    //unchanged cells written rather than moving the cursor past them
+    private static final int MAX_GAP = 4;
+
+    private int cols;
+    private int rows;
+
+    //active screen and the main and alternate screens
+    private char[][] chars;
+    private int[][] attrs;
+    private char[][] mainChars;
+    private int[][] mainAttrs;
+    private char[][] altChars;
+    private int[][] altAttrs;
+    private boolean altScreen = false;
+
+    private int x = 0;
+    private int y = 0;
+    private boolean wrapPending = false;
+    private int attr = DEFAULT_ATTR;
+    private int top;
+    private int bottom;
+    private boolean autowrap = true;
+    private boolean cursorVisible = true;
+    private int savedX = 0;
+    private int savedY = 0;
+    private int savedAttr = DEFAULT_ATTR;
+
+    private int state = GROUND;
+    private final int[] params = new int[MAX_PARAMS];
+    private int paramCount = 0;
+    private char prefix = 0;
+
+    //screen as last sent to the client
+    private char[][] sentChars;
+    private int[][] sentAttrs;
+    private int sentX = -1;
+    private int sentY = -1;
+    private int sentAttr = DEFAULT_ATTR;
+    private boolean sentCursorVisible = true;
+    //lines scrolled off the full main screen since the last render
+    private int scrolled = 0;
+    private boolean redraw = true;
+    private boolean dirty = true;
+
+
+    /**
+     * @param cols number of columns
+     * @param rows number of rows
+     */
+    public TerminalScreen(int cols, int rows) {
+        this.cols = Math.max(1, cols);
+        this.rows = Math.max(1, rows);
+        mainChars = newChars();
+        mainAttrs = newAttrs();
+        altChars = newChars();
+        altAttrs = newAttrs();
+        sentChars = newChars();
+        sentAttrs = newAttrs();
+        chars = mainChars;
+        attrs = mainAttrs;
+        top = 0;
+        bottom = this.rows - 1;
+    }
+
+    /**
+     * updates the screen with terminal output
+     *
+     * @param output output
+     */
+    public synchronized void feed(CharSequence output) {
+
+        for (int i = 0; i < output.length(); i++) {
+            char c = output.charAt(i);
+            switch (state) {
+                case GROUND:
+                    if (c == 0x1b) {
+                        state = ESCAPE;
+                    } else if (c < 0x20 || c == 0x7f) {
+                        control(c);
+                    } else {
+                        print(c);
+                    }
+                    break;
+                case ESCAPE:
+                    state = GROUND;
+                    escape(c);
+                    break;
+                case CSI:
+                    csi(c);
+                    break;
+                case OSC:
+                    if (c == 0x07) {
+                        state = GROUND;
+                    } else if (c == 0x1b) {
+                        state = OSC_ESCAPE;
+                    }
+                    break;
+                case OSC_ESCAPE:
+                    state = (c == '\\') ? GROUND : OSC;
+                    break;
+                default:
+                    state = GROUND;
+                    break;
+            }
+        }
+        dirty = true;
+    }
+
+    private void control(char c) {
+
+        switch (c) {
+            case 0x08:
+                if (x > 0) {
+                    x--;
+                }
+                wrapPending = false;
+                break;
+            case 0x09:
+                x = Math.min(cols - 1, (x / 8 + 1) * 8);
+                wrapPending = false;
+                break;
+            case 0x0a:
+            case 0x0b:
+            case 0x0c:
+                lineFeed();
+                break;
+            case 0x0d:
+                x = 0;
+                wrapPending = false;
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void print(char c) {
+
+        if (wrapPending) {
+            if (autowrap) {
+                x = 0;
+                lineFeed();
+            }
+            wrapPending = false;
+        }
+        chars[y][x] = c;
+        attrs[y][x] = attr;
+        if (x == cols - 1) {
+            wrapPending = true;
+        } else {
+            x++;
+        }
+    }
+
+    private void lineFeed() {
+
+        wrapPending = false;
+        if (y == bottom) {
+            scrollUp(top, bottom, 1);
+        } else if (y < rows - 1) {
+            y++;
+        }
+    }
+
+    private void reverseIndex() {
+
+        wrapPending = false;
+        if (y == top) {
+            scrollDown(top, bottom, 1);
+        } else if (y > 0) {
+            y--;
+        }
+    }
+
+    private void escape(char c) {
+
+        switch (c) {
+            case '[':
+                paramCount = 0;
+                prefix = 0;
+                state = CSI;
+                break;
+            case ']':
+            case 'P':
+            case 'X':
+            case '^':
+            case '_':
+                state = OSC;
+                break;
+            case '(':
+            case ')':
+            case '*':
+            case '+':
+            case '#':
+                state = SKIP_ONE;
+                break;
+            case '7':
+                saveCursor();
+                break;
+            case '8':
+                restoreCursor();
+                break;
+            case 'D':
+                lineFeed();
+                break;
+            case 'E':
+                x = 0;
+                lineFeed();
+                break;
+            case 'M':
+                reverseIndex();
+                break;
+            case 'c':
+                reset();
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void csi(char c) {
+
+        if (c >= '0' && c <= '9') {
+            if (paramCount == 0) {
+                paramCount = 1;
+                params[0] = 0;
+            }
+            params[paramCount - 1] = Math.min(params[paramCount - 1] * 10 + (c - '0'), MAX_PARAM_VALUE);
+        } else if (c == ';' || c == ':') {
+            if (paramCount == 0) {
+                paramCount = 1;
+                params[0] = 0;
+            }
+            if (paramCount < MAX_PARAMS) {
+                params[paramCount] = 0;
+                paramCount++;
+            }
+        } else if (c >= 0x3c && c <= 0x3f) {
+            prefix = c;
+        } else if (c >= 0x40 && c <= 0x7e) {
+            state = GROUND;
+            dispatch(c);
+        } else if (c == 0x1b) {
+            state = ESCAPE;
+        } else if (c < 0x20) {
+            control(c);
+        }
+    }
+
+    private int param(int index, int def) {
+        return (index < paramCount && params[index] != 0) ? params[index] : def;
+    }
+
+    private void dispatch(char c) {
+
+        if (prefix == '?') {
+            if (c == 'h' || c == 'l') {
+                for (int i = 0; i < paramCount; i++) {
+                    setPrivateMode(params[i], c == 'h');
+                }
+            }
+            return;
+        } else if (prefix != 0) {
+            return;
+        }
+
+        int n = param(0, 1);
+        switch (c) {
+            case 'A':
+                y = Math.max(y >= top ? top : 0, y - n);
+                break;
+            case 'B':
+            case 'e':
+                y = Math.min(y <= bottom ? bottom : rows - 1, y + n);
+                break;
+            case 'C':
+            case 'a':
+                x = Math.min(cols - 1, x + n);
+                break;
+            case 'D':
+                x = Math.max(0, x - n);
+                break;
+            case 'E':
+                x = 0;
+                y = Math.min(rows - 1, y + n);
+                break;
+            case 'F':
+                x = 0;
+                y = Math.max(0, y - n);
+                break;
+            case 'G':
+            case '`':
+                x = clamp(n - 1, cols);
+                break;
+            case 'H':
+            case 'f':
+                y = clamp(param(0, 1) - 1, rows);
+                x = clamp(param(1, 1) - 1, cols);
+                break;
+            case 'd':
+                y = clamp(n - 1, rows);
+                break;
+            case 'J':
+                eraseDisplay(paramCount > 0 ? params[0] : 0);
+                break;
+            case 'K':
+                eraseLine(paramCount > 0 ? params[0] : 0);
+                break;
+            case 'L':
+                if (y >= top && y <= bottom) {
+                    scrollDown(y, bottom, n);
+                }
+                break;
+            case 'M':
+                if (y >= top && y <= bottom) {
+                    scrollUp(y, bottom, n);
+                }
+                break;
+            case '@':
+                insertChars(n);
+                break;
+            case 'P':
+                deleteChars(n);
+                break;
+            case 'X':
+                clear(y, x, Math.min(cols, x + n));
+                break;
+            case 'S':
+                scrollUp(top, bottom, n);
+                break;
+            case 'T':
+                if (paramCount <= 1) {
+                    scrollDown(top, bottom, n);
+                }
+                break;
+            case 'm':
+                sgr();
+                break;
+            case 'r':
+                int t = param(0, 1) - 1;
+                int b = param(1, rows) - 1;
+                if (t < b && b < rows) {
+                    top = t;
+                    bottom = b;
+                } else {
+                    top = 0;
+                    bottom = rows - 1;
+                }
+                x = 0;
+                y = 0;
+                break;
+            case 's':
+                saveCursor();
+                break;
+            case 'u':
+                restoreCursor();
+                break;
+            default:
+                break;
+        }
+        wrapPending = false;
+    }
+
+    private void setPrivateMode(int mode, boolean set) {
+
+        switch (mode) {
+            case 7:
+                autowrap = set;
+                break;
+            case 25:
+                cursorVisible = set;
+                break;
+            case 47:
+            case 1047:
+            case 1049:
+                if (set && !altScreen) {
+                    if (mode == 1049) {
+                        saveCursor();
+                    }
+                    altScreen = true;
+                    chars = altChars;
+                    attrs = altAttrs;
+                    clearRows(0, rows);
+                } else if (!set && altScreen) {
+                    altScreen = false;
+                    chars = mainChars;
+                    attrs = mainAttrs;
+                    if (mode == 1049) {
+                        restoreCursor();
+                    }
+                }
+                break;
+            default:
+                break;
+        }
+    }
+
+    private void sgr() {
+
+        if (paramCount == 0) {
+            attr = DEFAULT_ATTR;
+            return;
+        }
+        for (int i = 0; i < paramCount; i++) {
+            int p = params[i];
+            if (p == 0) {
+                attr = DEFAULT_ATTR;
+            } else if (p == 1) {
+                attr = attr | BOLD;
+            } else if (p == 4) {
+                attr = attr | UNDERLINE;
+            } else if (p == 7) {
+                attr = attr | INVERSE;
+            } else if (p == 22) {
+                attr = attr & ~BOLD;
+            } else if (p == 24) {
+                attr = attr & ~UNDERLINE;
+            } else if (p == 27) {
+                attr = attr & ~INVERSE;
+            } else if (p >= 30 && p <= 37) {
+                attr = setFg(p - 30);
+            } else if (p == 39) {
+                attr = setFg(DEFAULT_COLOR);
+            } else if (p >= 40 && p <= 47) {
+                attr = setBg(p - 40);
+            } else if (p == 49) {
+                attr = setBg(DEFAULT_COLOR);
+            } else if (p >= 90 && p <= 97) {
+                attr = setFg(p - 90 + 8);
+            } else if (p >= 100 && p <= 107) {
+                attr = setBg(p - 100 + 8);
+            } else if ((p == 38 || p == 48) && i + 1 < paramCount) {
+                int color = -1;
+                if (params[i + 1] == 5 && i + 2 < paramCount) {
+                    color = params[i + 2] & 0xff;
+                    i = i + 2;
+                } else if (params[i + 1] == 2 && i + 4 < paramCount) {
+                    //nearest color of the 6x6x6 cube
+                    color = 16 + 36 * Math.round(params[i + 2] / 51f) + 6 * Math.round(params[i + 3] / 51f) + Math.round(params[i + 4] / 51f);
+                    color = Math.min(color, 231);
+                    i = i + 4;
+                }
+                if (color >= 0) {
+                    attr = (p == 38) ? setFg(color) : setBg(color);
+                }
+            }
+        }
+    }
+
+    private int setFg(int color) {
+        return (attr & ~COLOR_MASK) | color;
+    }
+
+    private int setBg(int color) {
+        return (attr & ~(COLOR_MASK << BG_SHIFT)) | (color << BG_SHIFT);
+    }
+
+    /**
+     * erased cells keep the background color
+     */
+    private int blankAttr() {
+        return DEFAULT_COLOR | (attr & (COLOR_MASK << BG_SHIFT));
+    }
+
+    private void eraseDisplay(int mode) {
+
+        if (mode == 0) {
+            clear(y, x, cols);
+            clearRows(y + 1, rows);
+        } else if (mode == 1) {
+            clearRows(0, y);
+            clear(y, 0, Math.min(cols, x + 1));
+        } else {
+            clearRows(0, rows);
+        }
+    }
+
+    private void eraseLine(int mode) {
+
+        if (mode == 0) {
+            clear(y, x, cols);
+        } else if (mode == 1) {
+            clear(y, 0, Math.min(cols, x + 1));
+        } else {
+            clear(y, 0, cols);
+        }
+    }
+
+    private void insertChars(int n) {
+
+        n = Math.min(n, cols - x);
+        System.arraycopy(chars[y], x, chars[y], x + n, cols - x - n);
+        System.arraycopy(attrs[y], x, attrs[y], x + n, cols - x - n);
+        clear(y, x, x + n);
+    }
+
+    private void deleteChars(int n) {
+
+        n = Math.min(n, cols - x);
+        System.arraycopy(chars[y], x + n, chars[y], x, cols - x - n);
+        System.arraycopy(attrs[y], x + n, attrs[y], x, cols - x - n);
+        clear(y, cols - n, cols);
+    }
+
+    private void clear(int row, int from, int to) {
+
+        int blank = blankAttr();
+        for (int i = from; i < to; i++) {
+            chars[row][i] = ' ';
+            attrs[row][i] = blank;
+        }
+    }
+
+    private void clearRows(int from, int to) {
+        for (int i = from; i < to; i++) {
+            clear(i, 0, cols);
+        }
+    }
+
+    /**
+     * moves rows of the region up, lines scrolled off the full main screen are also scrolled on the client
+     */
+    private void scrollUp(int t, int b, int n) {
+
+        n = Math.min(n, b - t + 1);
+        rotate(chars, attrs, t, b, n);
+        clearRows(b - n + 1, b + 1);
+
+        if (!altScreen && t == 0 && b == rows - 1 && !redraw) {
+            rotate(sentChars, sentAttrs, t, b, n);
+            for (int i = b - n + 1; i <= b; i++) {
+                for (int j = 0; j < cols; j++) {
+                    sentChars[i][j] = ' ';
+                    sentAttrs[i][j] = DEFAULT_ATTR;
+                }
+            }
+            scrolled = scrolled + n;
+        }
+    }
+
+    private void scrollDown(int t, int b, int n) {
+
+        n = Math.min(n, b - t + 1);
+        rotate(chars, attrs, t, b, -n);
+        clearRows(t, t + n);
+    }
+
+    /**
+     * moves the row arrays of the region by n, up if positive, and reuses the rows moved out of the region
+     */
+    private void rotate(char[][] charRows, int[][] attrRows, int t, int b, int n) {
+
+        int size = b - t + 1;
+        char[][] charCopy = new char[size][];
+        int[][] attrCopy = new int[size][];
+        for (int i = 0; i < size; i++) {
+            int from = t + ((i + n) % size + size) % size;
+            charCopy[i] = charRows[from];
+            attrCopy[i] = attrRows[from];
+        }
+        System.arraycopy(charCopy, 0, charRows, t, size);
+        System.arraycopy(attrCopy, 0, attrRows, t, size);
+    }
+
+    private void saveCursor() {
+        savedX = x;
+        savedY = y;
+        savedAttr = attr;
+    }
+
+    private void restoreCursor() {
+        x = clamp(savedX, cols);
+        y = clamp(savedY, rows);
+        attr = savedAttr;
+        wrapPending = false;
+    }
+
+    private void reset() {
+
+        altScreen = false;
+        chars = mainChars;
+        attrs = mainAttrs;
+        attr = DEFAULT_ATTR;
+        clearRows(0, rows);
+        x = 0;
+        y = 0;
+        top = 0;
+        bottom = rows - 1;
+        autowrap = true;
+        cursorVisible = true;
+        wrapPending = false;
+    }
+
+    private static int clamp(int value, int size) {
+        return Math.max(0, Math.min(size - 1, value));
+    }
+
+    /**
+     * changes the size of the screen, the client is sent the whole screen on the next render
+     *
+     * @param cols number of columns
+     * @param rows number of rows
+     */
+    public synchronized void resize(int cols, int rows) {
+
+        cols = Math.max(1, cols);
+        rows = Math.max(1, rows);
+        if (cols == this.cols && rows == this.rows) {
+            return;
+        }
+        int oldCols = this.cols;
+        int oldRows = this.rows;
+        this.cols = cols;
+        this.rows = rows;
+        mainChars = copyChars(mainChars, oldCols, oldRows);
+        mainAttrs = copyAttrs(mainAttrs, oldCols, oldRows);
+        altChars = copyChars(altChars, oldCols, oldRows);
+        altAttrs = copyAttrs(altAttrs, oldCols, oldRows);
+        chars = altScreen ? altChars : mainChars;
+        attrs = altScreen ? altAttrs : mainAttrs;
+        sentChars = newChars();
+        sentAttrs = newAttrs();
+        x = clamp(x, cols);
+        y = clamp(y, rows);
+        top = 0;
+        bottom = rows - 1;
+        wrapPending = false;
+        redraw = true;
+        dirty = true;
+    }
+
+    private char[][] copyChars(char[][] from, int oldCols, int oldRows) {
+
+        char[][] to = newChars();
+        for (int i = 0; i < Math.min(rows, oldRows); i++) {
+            System.arraycopy(from[i], 0, to[i], 0, Math.min(cols, oldCols));
+        }
+        return to;
+    }
+
+    private int[][] copyAttrs(int[][] from, int oldCols, int oldRows) {
+
+        int[][] to = newAttrs();
+        for (int i = 0; i < Math.min(rows, oldRows); i++) {
+            System.arraycopy(from[i], 0, to[i], 0, Math.min(cols, oldCols));
+        }
+        return to;
+    }
+
+    private char[][] newChars() {
+
+        char[][] grid = new char[rows][cols];
+        for (char[] row : grid) {
+            Arrays.fill(row, ' ');
+        }
+        return grid;
+    }
+
+    private int[][] newAttrs() {
+
+        int[][] grid = new int[rows][cols];
+        for (int[] row : grid) {
+            Arrays.fill(row, DEFAULT_ATTR);
+        }
+        return grid;
+    }
+
+    /**
+     * returns the escape sequences that bring the client screen up to date
+     *
+     * @param full true to send the whole screen, ie to a client that just attached
+     * @return changes or null if the screen has not changed
+     */
+    public synchronized String render(boolean full) {
+
+        if (!dirty && !full && !redraw) {
+            return null;
+        }
+        dirty = false;
+
+        StringBuilder out = new StringBuilder();
+        if (full || redraw) {
+            //reset attributes and scroll region and clear the client screen
+            out.append("\u001b[0m\u001b[r\u001b[H\u001b[2J");
+            for (int i = 0; i < rows; i++) {
+                Arrays.fill(sentChars[i], ' ');
+                Arrays.fill(sentAttrs[i], DEFAULT_ATTR);
+            }
+            sentAttr = DEFAULT_ATTR;
+            sentX = 0;
+            sentY = 0;
+            sentCursorVisible = !cursorVisible;
+            scrolled = 0;
+            redraw = false;
+        } else if (scrolled > 0) {
+            //new lines at the bottom push the same lines into the client scrollback
+            if (sentAttr != DEFAULT_ATTR) {
+                out.append("\u001b[0m");
+                sentAttr = DEFAULT_ATTR;
+            }
+            moveCursor(out, rows - 1, 0);
+            for (int i = 0; i < Math.min(scrolled, rows); i++) {
+                out.append('\n');
+            }
+            sentX = 0;
+            sentY = rows - 1;
+            scrolled = 0;
+        }
+
+        for (int r = 0; r < rows; r++) {
+            char[] rowChars = chars[r];
+            int[] rowAttrs = attrs[r];
+            char[] sentRowChars = sentChars[r];
+            int[] sentRowAttrs = sentAttrs[r];
+            int c = 0;
+            while (c < cols) {
+                if (rowChars[c] == sentRowChars[c] && rowAttrs[c] == sentRowAttrs[c]) {
+                    c++;
+                    continue;
+                }
+                //write short runs of unchanged cells instead of moving the cursor
+                if (sentY == r && sentX < c && c - sentX <= MAX_GAP) {
+                    for (int i = sentX; i < c; i++) {
+                        writeCell(out, r, i);
+                    }
+                } else if (sentY != r || sentX != c) {
+                    moveCursor(out, r, c);
+                }
+                writeCell(out, r, c);
+                c++;
+            }
+        }
+
+        if (x != sentX || y != sentY) {
+            moveCursor(out, y, x);
+        }
+        if (cursorVisible != sentCursorVisible) {
+            out.append(cursorVisible ? "\u001b[?25h" : "\u001b[?25l");
+            sentCursorVisible = cursorVisible;
+        }
+        return out.length() > 0 ? out.toString() : null;
+    }
+
+    private void writeCell(StringBuilder out, int r, int c) {
+
+        int cellAttr = attrs[r][c];
+        if (cellAttr != sentAttr) {
+            appendSgr(out, cellAttr);
+            sentAttr = cellAttr;
+        }
+        out.append(chars[r][c]);
+        sentChars[r][c] = chars[r][c];
+        sentAttrs[r][c] = cellAttr;
+        //the client cursor stays on the last column until the next char is written
+        if (c < cols - 1) {
+            sentX = c + 1;
+            sentY = r;
+        } else {
+            sentX = -1;
+            sentY = -1;
+        }
+    }
+
+    private void moveCursor(StringBuilder out, int r, int c) {
+        out.append("\u001b[").append(r + 1).append(';').append(c + 1).append('H');
+        sentX = c;
+        sentY = r;
+    }
+
+    private static void appendSgr(StringBuilder out, int cellAttr) {
+
+        out.append("\u001b[0");
+        if ((cellAttr & BOLD) != 0) {
+            out.append(";1");
+        }
+        if ((cellAttr & UNDERLINE) != 0) {
+            out.append(";4");
+        }
+        if ((cellAttr & INVERSE) != 0) {
+            out.append(";7");
+        }
+        appendColor(out, cellAttr & COLOR_MASK, 30, 90, 38);
+        appendColor(out, (cellAttr >> BG_SHIFT) & COLOR_MASK, 40, 100, 48);
+        out.append('m');
+    }
+
+    private static void appendColor(StringBuilder out, int color, int base, int brightBase, int extended) {
+
+        if (color < 8) {
+            out.append(';').append(base + color);
+        } else if (color < 16) {
+            out.append(';').append(brightBase + color - 8);
+        } else if (color < DEFAULT_COLOR) {
+            out.append(';').append(extended).append(";5;").append(color);
+        }
+    }
+
+    public synchronized int getCols() {
+        return cols;
+    }
+
+    public synchronized int getRows() {
+        return rows;
+    }
+}
@@ -37,6 +37,7 @@
             <ul class="nav navbar-nav">
                 <li><a href="../admin/setSystems.action">Secure Shell</a></li>
                 <li><a href="../admin/userSettings.action">Settings</a></li>
+                <li><a href="../admin/viewRecordings.action">Recordings</a></li>
 
                 <li><a href="../logout.action">Logout</a></li>
             </ul>
@@ -0,0 +1,217 @@
+<%
+/**
+ * Copyright 2013 Sean Kavanagh - sean.p.kavanagh6@gmail.com
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+%>
+<%@ taglib prefix="s" uri="/struts-tags" %>
+<!DOCTYPE html>
+<html>
+<head>
+
+    <jsp:include page="../_res/inc/header.jsp"/>
+
+    <script type="text/javascript">
+        $(document).ready(function () {
+
+            //frames are read a page at a time while the recording plays
+            var term = null;
+            var recordingName = null;
+            var frames = [];
+            var frameIndex = 0;
+            var next = 0;
+            var more = false;
+            var loading = false;
+            var timer = null;
+            //longest pause between frames in ms so idle time is skipped
+            var MAX_DELAY = 2000;
+
+            function load(callback) {
+                loading = true;
+                var name = recordingName;
+                $.ajax({
+                    url: '../admin/getRecording.action',
+                    data: {recordingName: name, offset: next},
+                    dataType: 'json',
+                    cache: false,
+                    success: function (page) {
+                        loading = false;
+                        if (!page || name != recordingName) {
+                            return;
+                        }
+                        frames = frames.slice(frameIndex).concat(page.frames);
+                        frameIndex = 0;
+                        next = page.next;
+                        more = !page.eof;
+                        if (callback) {
+                            callback();
+                        }
+                    }
+                });
+            }
+
+            function step() {
+                timer = null;
+                if (frameIndex >= frames.length) {
+                    if (more && !loading) {
+                        load(step);
+                    }
+                    return;
+                }
+                var frame = frames[frameIndex++];
+                if (frame[1] == 'o') {
+                    term.write(frame[2]);
+                }
+                if (more && !loading && frames.length - frameIndex < 100) {
+                    load();
+                }
+                var delay = 0;
+                if (frameIndex < frames.length) {
+                    delay = Math.min((frames[frameIndex][0] - frame[0]) * 1000 / parseFloat($('#speed').val()), MAX_DELAY);
+                }
+                timer = setTimeout(step, delay);
+            }
+
+            function play(name, offset) {
+                if (timer) {
+                    clearTimeout(timer);
+                }
+                if (term) {
+                    term.destroy();
+                }
+                recordingName = name;
+                frames = [];
+                frameIndex = 0;
+                next = offset;
+                more = false;
+                $('#player_title').text(recordingName);
+                $('#player').show();
+                $('#player_output').empty();
+                term = new Terminal({cols: 80, rows: 24, screenKeys: false, useStyle: true, convertEol: true});
+                term.open($('#player_output').get(0));
+                load(step);
+            }
+
+            $('.play_btn').click(function () {
+                play($(this).attr('data-name'), 0);
+            });
+
+            //search results link to the block that matched
+            $('#search_frm').submit(function () {
+                var params = {query: $('#query').val()};
+                if ($('#from_date').val()) {
+                    params.fromTm = new Date($('#from_date').val()).getTime();
+                }
+                if ($('#to_date').val()) {
+                    params.toTm = new Date($('#to_date').val()).getTime() + 86400000;
+                }
+                $.ajax({
+                    url: '../admin/searchRecordings.action',
+                    data: params,
+                    dataType: 'json',
+                    cache: false,
+                    success: function (resultList) {
+                        var results = $('#search_results').empty();
+                        if (resultList.length == 0) {
+                            results.append($('<p class="error"/>').text('No matches found'));
+                        }
+                        $.each(resultList, function (key, result) {
+                            var link = $('<a href="#"/>').text(new Date(result.time).toLocaleString() + ' ' + result.title)
+                                    .click(function () {
+                                        play(result.recordingName, result.offset);
+                                        return false;
+                                    });
+                            results.append($('<div/>').append(link).append($('<pre/>').text(result.snippet)));
+                        });
+                    }
+                });
+                return false;
+            });
+
+            <s:if test="recordingName!=null">
+                play('<s:property value="recordingName" escapeJavaScript="true"/>', <s:property value="offset!=null ? offset : 0"/>);
+            </s:if>
+
+        });
+    </script>
+
+    <title>KeyBox - Recordings</title>
+</head>
+<body>
+
+
+    <jsp:include page="../_res/inc/navigation.jsp"/>
+
+    <div class="container">
+
+        <h3>Recordings</h3>
+
+        <p>Replay the output of recorded terminal sessions</p>
+
+        <form id="search_frm" class="form-inline">
+            <input type="text" id="query" class="form-control" placeholder="Find commands and output" size="40"/>
+            <label for="from_date">From</label>
+            <input type="date" id="from_date" class="form-control"/>
+            <label for="to_date">To</label>
+            <input type="date" id="to_date" class="form-control"/>
+            <button type="submit" class="btn btn-default">Search</button>
+        </form>
+        <div id="search_results"></div>
+
+        <div id="player" style="display:none">
+            <h5 id="player_title"></h5>
+            <label for="speed">Speed</label>
+            <select id="speed">
+                <option value="0.5">0.5x</option>
+                <option value="1" selected="selected">1x</option>
+                <option value="2">2x</option>
+                <option value="4">4x</option>
+                <option value="8">8x</option>
+            </select>
+            <div class="term">
+                <div id="player_output" class="output"></div>
+            </div>
+        </div>
+
+        <s:if test="recordingList!= null && !recordingList.isEmpty()">
+            <table class="table-striped scrollableTable" style="min-width:80%">
+                <thead>
+                <tr>
+                    <th>Recording</th>
+                    <th>Size</th>
+                    <th>&nbsp;</th>
+                </tr>
+                </thead>
+                <tbody>
+                <s:iterator var="recording" value="recordingList">
+                    <tr>
+                        <td><s:property value="#recording['name']"/></td>
+                        <td><s:property value="#recording['size']"/></td>
+                        <td>
+                            <div class="btn btn-default play_btn" data-name="<s:property value="#recording['name']"/>">Play</div>
+                        </td>
+                    </tr>
+                </s:iterator>
+                </tbody>
+            </table>
+        </s:if>
+        <s:else>
+            <p class="error">No recordings found</p>
+        </s:else>
+
+    </div>
+
+
+</body>
+</html>
@@ -71,8 +71,49 @@
                 }
                 
             });
-            
-         
+
+            //history is kept by the server and loaded a page at a time as it is viewed
+            var historyId = null;
+            var historyFrom = null;
+            var HISTORY_PAGE = 16384;
+            function loadHistory() {
+                var params = {id: historyId, length: HISTORY_PAGE};
+                if (historyFrom != null) {
+                    params.from = Math.max(0, historyFrom - HISTORY_PAGE);
+                    params.length = historyFrom - params.from;
+                }
+                $.ajax({
+                    url: '../admin/getScrollback.action',
+                    data: params,
+                    dataType: 'json',
+                    cache: false,
+                    success: function (range) {
+                        if (range) {
+                            historyFrom = range.from;
+                            //remove escape sequences so the output can be shown as text
+                            var text = range.output.replace(/\x1b\[[0-9;?]*[A-Za-z]|\x1b\][^\x07]*\x07/g, '');
+                            $('#history_output').prepend(document.createTextNode(text));
+                            $('#history_older_btn').prop('disabled', range.from <= range.start);
+                        }
+                    }
+                });
+            }
+
+            $('#history').click(function () {
+                var ids = getActiveTermsInstanceIds();
+                if (ids.length > 0) {
+                    historyId = ids[0];
+                    historyFrom = null;
+                    $('#history_output').empty();
+                    $('#history_title').text($('#run_cmd_' + historyId).find('.term-header').text());
+                    $('#history_dialog').modal();
+                    loadHistory();
+                }
+            });
+
+            $('#history_older_btn').click(function () {
+                loadHistory();
+            });
 
             //select all
             $('#select_all').click(function () {
@@ -96,6 +137,24 @@
             <s:else>
             <s:if test="currentSystemStatus==null ||currentSystemStatus.statusCd!='GENERICFAIL'">
             $("#composite_terms_frm").submit();
+
+            //show status for each system as connections complete
+            setInterval(function () {
+                $.getJSON('../admin/getSystemStatusList.action', function (statusList) {
+                    var rows = '';
+                    $.each(statusList, function (key, val) {
+                        rows += '<tr><td>' + $('<div/>').text(val.displayLabel).html() + '</td><td>' + val.statusCd + '</td>';
+                        //time in ms for each connect phase, blank if the phase was not reached or the session was reused
+                        var timing = val.connectTiming || {};
+                        $.each(['dnsTm', 'tcpTm', 'kexTm', 'authTm', 'channelTm'], function (i, phase) {
+                            rows += '<td>' + ((timing[phase] != null) ? timing[phase] : '') + '</td>';
+                        });
+                        rows += '</tr>';
+                    });
+                    $('#connect_status tbody').html(rows);
+                    $('#connect_status').show();
+                });
+            }, 1000);
             </s:if>
             </s:else>
             </s:elseif>
@@ -125,7 +184,7 @@
                             && !keys[38] && !keys[39] && !keys[40] && !keys[13] && !keys[8] && !keys[9]
                             && !keys[46] && !keys[45] && !keys[33] && !keys[34] && !keys[35] && !keys[36]) {
                         var cmdStr = String.fromCharCode(keyCode);
-                        connection.send(JSON.stringify({id: getActiveTermsInstanceIds(), command: cmdStr}));
+                        sendInput(null, cmdStr);
                     }
 
                 }
@@ -152,7 +211,7 @@
                     //35 - END
                     //36 - HOME
                     if((e.ctrlKey && !e.altKey) || keyCode == 27 || keyCode == 37 || keyCode == 38 || keyCode == 39 || keyCode == 40 || keyCode == 13 || keyCode == 8 || keyCode == 9 || keyCode == 46 || keyCode == 45 || keyCode == 33 || keyCode == 34 || keyCode == 35 || keyCode == 36) {
-                        connection.send(JSON.stringify({id: getActiveTermsInstanceIds(), keyCode: keyCode}));
+                        sendInput(keyCode, null);
                     }
 
                     //prevent default for unix ctrl commands
@@ -190,7 +249,7 @@
                 $('#dummy').val('');
                 setTimeout(function () {
                     var cmdStr = $('#dummy').val();
-                    connection.send(JSON.stringify({id: getActiveTermsInstanceIds(), command: cmdStr}));
+                    sendInput(null, cmdStr);
                 }, 100);
             });
 
@@ -228,30 +287,179 @@
             var loc = window.location, ws_uri;
             ws_uri = "wss://" + loc.host + ':8443' + loc.pathname + '/../terms.ws?t=' + new Date().getTime();
 
-            var connection = new WebSocket(ws_uri);
+            //ask for binary output frames if they can be decoded, server may still send json
+            var decoder = window.TextDecoder ? new TextDecoder('utf-8') : null;
+            if (decoder) {
+                ws_uri = ws_uri + '&format=binary';
+                //ask for large messages to be compressed if they can be inflated
+                if (window.DecompressionStream) {
+                    ws_uri = ws_uri + '&compress=deflate';
+                }
+            }
 
+            //ask for screen updates, the server sends the raw output if they are not enabled
+            ws_uri = ws_uri + '&mode=screen';
+
+            //sequence received for each terminal, sent when reconnecting so only the missed output is replayed
+            var termSeq = {};
+            var connection = null;
+            //reconnect only when the socket was dropped, not closed by the server for idle timeout, policy or auth
+            var RECONNECT_CODES = [1001, 1006, 1011, 1012, 1013];
+            var RECONNECT_DELAY = 1000;
+            var RECONNECT_MAX_DELAY = 30000;
+            //failed attempts before giving up, a rejected upgrade after the login session expires also closes with 1006
+            var RECONNECT_MAX_ATTEMPTS = 8;
+            var reconnectAttempts = 0;
+            function connect() {
+                var resume = [];
+                $.each(termSeq, function (id, seq) {
+                    resume.push(id + ':' + seq);
+                });
+                connection = new WebSocket(ws_uri + '&resume=' + resume.join(','));
+                connection.binaryType = 'arraybuffer';
+                connection.onerror = function (error) {
+                    console.log('WebSocket Error ' + error);
+                };
+                connection.onopen = function () {
+                    reconnectAttempts = 0;
+                };
+                connection.onmessage = onMessage;
+                //terminals are kept by the server for a grace period so reconnect after a network error
+                connection.onclose = function (e) {
+                    if ($.inArray(e.code, RECONNECT_CODES) < 0 || reconnectAttempts >= RECONNECT_MAX_ATTEMPTS) {
+                        closeTerms(e.code == 4000 ? 'idle timeout' : 'connection closed');
+                        return;
+                    }
+                    var delay = Math.min(RECONNECT_MAX_DELAY, RECONNECT_DELAY * Math.pow(2, reconnectAttempts));
+                    reconnectAttempts++;
+                    setTimeout(connect, delay);
+                };
+            }
+            connect();
 
-            // Log errors
-            connection.onerror = function (error) {
-                console.log('WebSocket Error ' + error);
+            //tells the user the terminals are no longer connected
+            function closeTerms(reason) {
+                $.each(termMap, function (id, term) {
+                    term.write('\r\n[' + reason + ']\r\n');
+                });
+            }
+
+            //send input as binary frames of type, id count, ids and key code or utf-8 command, the only input the socket accepts
+            var encoder = window.TextEncoder ? new TextEncoder() : {
+                encode: function (command) {
+                    var bytes = unescape(encodeURIComponent(command));
+                    var data = new Uint8Array(bytes.length);
+                    for (var i = 0; i < bytes.length; i++) {
+                        data[i] = bytes.charCodeAt(i);
+                    }
+                    return data;
+                }
             };
 
-            // Log messages from the server
-            connection.onmessage = function (e) {
-                var json = jQuery.parseJSON(e.data);
-                $.each(json, function (key, val) {
-                    if (val.output != '') {
-                        if(!termMap[val.instanceId]) {
-                            createTermMap(val.instanceId, val.output);
-                        }else {
-                            termMap[val.instanceId].write(val.output);
+            //selected terminals are registered as a broadcast group, ids are still sent in case the group is invalidated
+            var broadcastGroupId = null;
+            var broadcastIds = null;
+            function registerBroadcastGroup(ids) {
+                broadcastIds = ids.join(',');
+                broadcastGroupId = null;
+                var registeredIds = broadcastIds;
+                $.ajax({
+                    url: '../admin/createBroadcastGroup.action',
+                    data: $.param({idList: ids}, true),
+                    dataType: 'json',
+                    cache: false,
+                    success: function (data) {
+                        if (registeredIds == broadcastIds) {
+                            broadcastGroupId = data.groupId;
                         }
                     }
-                        
                 });
+            }
 
-                
-            };
+            function sendInput(keyCode, command) {
+                if (connection.readyState != WebSocket.OPEN) {
+                    return;
+                }
+                var ids = getActiveTermsInstanceIds();
+                if (ids.join(',') != broadcastIds) {
+                    registerBroadcastGroup(ids);
+                }
+                var data = (keyCode != null) ? null : encoder.encode(command);
+                var header = (broadcastGroupId != null) ? 7 : 3;
+                var length = header + ids.length * 2 + ((data) ? data.length : 2);
+                var buffer = new ArrayBuffer(length);
+                var view = new DataView(buffer);
+                if (broadcastGroupId != null) {
+                    view.setUint8(0, (keyCode != null) ? 3 : 4);
+                    view.setInt32(1, broadcastGroupId);
+                } else {
+                    view.setUint8(0, (keyCode != null) ? 1 : 2);
+                }
+                view.setUint16(header - 2, ids.length);
+                for (var i = 0; i < ids.length; i++) {
+                    view.setUint16(header + i * 2, ids[i]);
+                }
+                if (data) {
+                    new Uint8Array(buffer, header + ids.length * 2).set(data);
+                } else {
+                    view.setUint16(header + ids.length * 2, keyCode);
+                }
+                connection.send(buffer);
+            }
+
+
+            // Log messages from the server
+            //inflating is async so binary messages are queued to keep output in order
+            var outputQueue = window.Promise ? Promise.resolve() : null;
+
+            function onMessage(e) {
+                if (e.data instanceof ArrayBuffer) {
+                    //flags byte followed by frames, compressed if the first bit is set
+                    var compressed = (new DataView(e.data).getUint8(0) & 1) == 1;
+                    var frames = e.data.slice(1);
+                    if (compressed) {
+                        outputQueue = outputQueue.then(function () {
+                            return new Response(new Blob([frames]).stream().pipeThrough(new DecompressionStream('deflate'))).arrayBuffer();
+                        }).then(writeFrames);
+                    } else if (outputQueue) {
+                        outputQueue = outputQueue.then(function () {
+                            writeFrames(frames);
+                        });
+                    } else {
+                        writeFrames(frames);
+                    }
+                } else {
+                    var json = jQuery.parseJSON(e.data);
+                    $.each(json, function (key, val) {
+                        writeTerm(val.instanceId, val.output);
+                        termSeq[val.instanceId] = val.seq;
+                    });
+                }
+            }
+
+            //frames of instance id, sequence after the output, output length and UTF-8 output
+            function writeFrames(frames) {
+                var view = new DataView(frames);
+                var pos = 0;
+                while (pos < view.byteLength) {
+                    var instanceId = view.getInt32(pos);
+                    var seq = view.getUint32(pos + 4) * 4294967296 + view.getUint32(pos + 8);
+                    var length = view.getInt32(pos + 12);
+                    writeTerm(instanceId, decoder.decode(new Uint8Array(frames, pos + 16, length)));
+                    termSeq[instanceId] = seq;
+                    pos = pos + 16 + length;
+                }
+            }
+
+            function writeTerm(instanceId, output) {
+                if (output != '') {
+                    if (!termMap[instanceId]) {
+                        createTermMap(instanceId, output);
+                    } else {
+                        termMap[instanceId].write(output);
+                    }
+                }
+            }
             
             function  createTermMap(id, output){
 
@@ -264,6 +472,8 @@
                         </s:iterator>
                         ],
                     </s:if>
+                    //older output is kept by the server and viewed from history
+                    scrollback: 500,
                     screenKeys: false,
                     useStyle: true,
                     cursorBlink: true,
@@ -533,6 +743,7 @@
                             <li><a id="connect_to_host" data-toggle="modal" data-target="#connect_to_host_dialog" href="#">Connect to Gear</a></li>
                             <li><a id="dup_session" href="#">Duplicate Session</a></li>
                             <li><a id="reset_size" href="#">Reset Size</a></li>
+                            <li><a id="history" href="#">History</a></li>
                             <li><a id="disconnect" href="#">Disconnect</a></li>
                         </ul>
                     </li>
@@ -570,6 +781,24 @@
 
 
     </div>
+
+    <s:if test="pendingSystemStatus!=null">
+        <table id="connect_status" class="table-striped scrollableTable" style="display:none">
+            <thead>
+            <tr>
+                <th>System</th>
+                <th>Status</th>
+                <th>DNS (ms)</th>
+                <th>TCP (ms)</th>
+                <th>KEX (ms)</th>
+                <th>Auth (ms)</th>
+                <th>Channel (ms)</th>
+            </tr>
+            </thead>
+            <tbody>
+            </tbody>
+        </table>
+    </s:if>
     </s:if>
     <s:else>
         <jsp:include page="../_res/inc/navigation.jsp"/>
@@ -606,6 +835,24 @@
         </div>
     </div>
 
+    <div id="history_dialog" class="modal fade modal-wide">
+        <div class="modal-dialog">
+            <div class="modal-content">
+                <div class="modal-header">
+                    <button type="button" class="close" data-dismiss="modal" aria-hidden="true">x</button>
+                    <h4 class="modal-title">History: <span id="history_title"></span></h4>
+                </div>
+                <div class="modal-body">
+                    <pre id="history_output" style="max-height:400px;overflow:auto"></pre>
+                </div>
+                <div class="modal-footer">
+                    <button type="button" id="history_older_btn" class="btn btn-default">Older</button>
+                    <button type="button" class="btn btn-default" data-dismiss="modal">Close</button>
+                </div>
+            </div>
+        </div>
+    </div>
+
     <div id="set_password_dialog" class="modal fade">
         <div class="modal-dialog">
             <div class="modal-content">
@@ -66,6 +66,8 @@
                               }" label="Foreground / Background" headerKey=""
                       headerValue="- Select FG / BG -"/>
 
+            <s:textfield name="userSettings.outputRateLimit" label="Max Output per Terminal (chars/sec, blank for the default)" size="10"/>
+
 
             
 